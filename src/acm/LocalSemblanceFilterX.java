@@ -8,6 +8,7 @@ package acm;
 
 import edu.mines.jtk.dsp.*;
 import edu.mines.jtk.dsp.LocalDiffusionKernel;
+import edu.mines.jtk.util.Parallel;
 import static edu.mines.jtk.util.ArrayMath.*;
 
 /**
@@ -202,9 +203,6 @@ public class LocalSemblanceFilterX {
   public void semblance(
     Direction3 d, EigenTensors3 t, float[][][] f, float[][][] s) 
   {
-    int n1 = f[0][0].length;
-    int n2 = f[0].length;
-    int n3 = f.length;
     float[][][] sn,sd;
     sn = smooth1(d,t,f);
     sn = mul(sn,sn);
@@ -212,32 +210,7 @@ public class LocalSemblanceFilterX {
     sd = mul(f,f);
     sd = smooth1(d,t,sd);
     sd = smooth2(d,t,sd);
-    int count0 = 0;
-    int count1 = 0;
-    for (int i3=0; i3<n3; ++i3) {
-      for (int i2=0; i2<n2; ++i2) {
-        if (allZero(f[i3][i2])) {
-          for (int i1=0; i1<n1; ++i1) {
-            s[i3][i2][i1] = 0.0f;
-          }
-        } else {
-          for (int i1=0; i1<n1; ++i1) {
-            float sni = sn[i3][i2][i1];
-            float sdi = sd[i3][i2][i1];
-            if (sdi<=0.0f || sni<0.0f) {
-              s[i3][i2][i1] = 0.0f;
-              ++count0;
-            } else if (sdi<sni) {
-              s[i3][i2][i1] = 1.0f;
-              ++count1;
-            } else {
-              s[i3][i2][i1] = sni/sdi;
-            }
-          }
-        }
-      }
-    }
-    trace("semblance3: count0="+count0+" count1="+count1);
+    semblance(f,sn,sd,s);
   }
 
   public float[][][] semblance(Direction3 d, EigenTensors3 t, float[][][] f) {
@@ -246,6 +219,52 @@ public class LocalSemblanceFilterX {
     return s;
   }
 
+  /**
+   * Computes semblance images for multiple directions in one call.
+   * Numerators and denominators are smoothed together, as two inputs 
+   * to one smoothing, and the squared image used for all denominators 
+   * is computed only once. For boxcar and Gaussian smoothings, the 1st 
+   * smoothings for all directions are done in one parallel pass, because 
+   * their inputs are the same for all directions. In this pass and in
+   * that for 2nd smoothings, eigenvectors of tensors are fetched only 
+   * once per sample for all directions, and interpolation weights are 
+   * computed only once for both numerators and denominators.
+   * @param ds array of directions, one for each semblance image.
+   * @param t eigen-decomposition of tensor field.
+   * @param f input image.
+   * @return array of semblance images, one for each direction.
+   */
+  public float[][][][] semblance(
+    Direction3[] ds, EigenTensors3 t, float[][][] f) 
+  {
+    int nd = ds.length;
+    int n1 = f[0][0].length;
+    int n2 = f[0].length;
+    int n3 = f.length;
+    float[][][] ff = mul(f,f);
+    Direction3[] dt = new Direction3[nd];
+    float[][][][] fn = new float[nd][][][];
+    float[][][][] fd = new float[nd][][][];
+    for (int id=0; id<nd; ++id) {
+      dt[id] = orthogonal(ds[id]);
+      fn[id] = f;
+      fd[id] = ff;
+    }
+    float[][][][] sn = new float[nd][n3][n2][n1];
+    float[][][][] sd = new float[nd][n3][n2][n1];
+    smooth(_smoother1,ds,t,fn,fd,sn,sd);
+    ff = null;
+    for (int id=0; id<nd; ++id)
+      mul(sn[id],sn[id],sn[id]);
+    float[][][][] gn = new float[nd][n3][n2][n1];
+    float[][][][] gd = new float[nd][n3][n2][n1];
+    smooth(_smoother2,dt,t,sn,sd,gn,gd);
+    sd = null;
+    for (int id=0; id<nd; ++id)
+      semblance(f,gn[id],gd[id],sn[id]);
+    return sn;
+  }
+
   /**
    * Computes semblances using slopes in a specified window.
    * This is a rather common method for computing local semblance
@@ -502,6 +521,58 @@ public class LocalSemblanceFilterX {
   ///////////////////////////////////////////////////////////////////////////
   // private
 
+  // Computes semblance ratios from smoothed numerators and denominators.
+  private static void semblance(
+    float[][][] f, float[][][] sn, float[][][] sd, float[][][] s)
+  {
+    int n1 = f[0][0].length;
+    int n2 = f[0].length;
+    int n3 = f.length;
+    int count0 = 0;
+    int count1 = 0;
+    for (int i3=0; i3<n3; ++i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        if (allZero(f[i3][i2])) {
+          for (int i1=0; i1<n1; ++i1) {
+            s[i3][i2][i1] = 0.0f;
+          }
+        } else {
+          for (int i1=0; i1<n1; ++i1) {
+            float sni = sn[i3][i2][i1];
+            float sdi = sd[i3][i2][i1];
+            if (sdi<=0.0f || sni<0.0f) {
+              s[i3][i2][i1] = 0.0f;
+              ++count0;
+            } else if (sdi<sni) {
+              s[i3][i2][i1] = 1.0f;
+              ++count1;
+            } else {
+              s[i3][i2][i1] = sni/sdi;
+            }
+          }
+        }
+      }
+    }
+    trace("semblance3: count0="+count0+" count1="+count1);
+  }
+
+  // Smooths numerators fn and denominators fd for multiple directions.
+  // Smoothers other than FIR smoothers have no fused implementation, and
+  // simply smooth each numerator and denominator separately.
+  private static void smooth(
+    Smoother sm, Direction3[] ds, EigenTensors3 t, 
+    float[][][][] fn, float[][][][] fd, float[][][][] gn, float[][][][] gd) 
+  {
+    if (sm instanceof FirSmoother) {
+      ((FirSmoother)sm).apply(ds,t,fn,fd,gn,gd);
+    } else {
+      for (int id=0; id<ds.length; ++id) {
+        sm.apply(ds[id],t,fn[id],gn[id]);
+        sm.apply(ds[id],t,fd[id],gd[id]);
+      }
+    }
+  }
+
   private static class CopySmoother implements Smoother {
     public void apply(float[] f, float[] g) {
       copy(f,g);
@@ -763,6 +834,111 @@ public class LocalSemblanceFilterX {
         }
       }
     }
+    public void apply(
+      final Direction3[] ds, final EigenTensors3 t,
+      final float[][][][] fn, final float[][][][] fd,
+      final float[][][][] gn, final float[][][][] gd)
+    {
+      final int nd = ds.length;
+      final int n1 = fn[0][0][0].length;
+      final int n2 = fn[0][0].length;
+      final int n3 = fn[0].length;
+      Parallel.loop(n3,new Parallel.LoopInt() {
+      public void compute(int i3) {
+        float[] u = new float[3];
+        float[] v = new float[3];
+        float[] w = new float[3];
+        float[] a = new float[2];
+        for (int i2=0; i2<n2; ++i2) {
+          for (int i1=0; i1<n1; ++i1) {
+            t.getEigenvectorU(i1,i2,i3,u);
+            t.getEigenvectorV(i1,i2,i3,v);
+            t.getEigenvectorW(i1,i2,i3,w);
+            for (int id=0; id<nd; ++id) {
+              Direction3 d = ds[id];
+              float[][][] fni = fn[id], fdi = fd[id];
+              a[0] = a[1] = 0.0f;
+              if (d==Direction3.U)
+                accumulateLinear(u,i1,i2,i3,fni,fdi,a);
+              else if (d==Direction3.V)
+                accumulateLinear(v,i1,i2,i3,fni,fdi,a);
+              else if (d==Direction3.W)
+                accumulateLinear(w,i1,i2,i3,fni,fdi,a);
+              else if (d==Direction3.UV)
+                accumulatePlanar(u,v,i1,i2,i3,fni,fdi,a);
+              else if (d==Direction3.UW)
+                accumulatePlanar(u,w,i1,i2,i3,fni,fdi,a);
+              else if (d==Direction3.VW)
+                accumulatePlanar(v,w,i1,i2,i3,fni,fdi,a);
+              else
+                accumulateAll(i1,i2,i3,fni,fdi,a);
+              gn[id][i3][i2][i1] = a[0];
+              gd[id][i3][i2][i1] = a[1];
+            }
+          }
+        }
+      }});
+    }
+    private void accumulateLinear(
+      float[] r, int i1, int i2, int i3, 
+      float[][][] f, float[][][] g, float[] a) 
+    {
+      int n1 = f[0][0].length;
+      int n2 = f[0].length;
+      int n3 = f.length;
+      float[] w = _w1;
+      int n = w.length;
+      int m = (n-1)/2;
+      float r1 = r[0], r2 = r[1], r3 = r[2];
+      for (int i=0,ir=-m; i<n; ++i,++ir) {
+        float x1 = i1+ir*r1, x2 = i2+ir*r2, x3 = i3+ir*r3;
+        accumulateTrilinear(w[i],x1,x2,x3,n1,n2,n3,f,g,a);
+      }
+    }
+    private void accumulatePlanar(
+      float[] r, float[] s, int i1, int i2, int i3, 
+      float[][][] f, float[][][] g, float[] a) 
+    {
+      int n1 = f[0][0].length;
+      int n2 = f[0].length;
+      int n3 = f.length;
+      float[][] w = _w2;
+      int n = w.length;
+      int m = (n-1)/2;
+      float r1 = r[0], r2 = r[1], r3 = r[2];
+      float s1 = s[0], s2 = s[1], s3 = s[2];
+      for (int i=0,ir=-m; i<n; ++i,++ir) {
+        float x1 = i1+ir*r1, x2 = i2+ir*r2, x3 = i3+ir*r3;
+        for (int j=0,js=-m; j<n; ++j,++js) {
+          float y1 = x1+js*s1, y2 = x2+js*s2, y3 = x3+js*s3;
+          accumulateTrilinear(w[i][j],y1,y2,y3,n1,n2,n3,f,g,a);
+        }
+      }
+    }
+    private void accumulateAll(
+      int i1, int i2, int i3, float[][][] f, float[][][] g, float[] a) 
+    {
+      int n1 = f[0][0].length;
+      int n2 = f[0].length;
+      int n3 = f.length;
+      float[][][] w = _w3;
+      int n = w.length;
+      int m = (n-1)/2;
+      float af = 0.0f, ag = 0.0f;
+      for (int k3=0; k3<n; ++k3) {
+        int j3 = i3+k3-m; if (j3<0) j3 = 0; if (j3>=n3) j3 = n3-1;
+        for (int k2=0; k2<n; ++k2) {
+          int j2 = i2+k2-m; if (j2<0) j2 = 0; if (j2>=n2) j2 = n2-1;
+          for (int k1=0; k1<n; ++k1) {
+            int j1 = i1+k1-m; if (j1<0) j1 = 0; if (j1>=n1) j1 = n1-1;
+            af += w[k3][k2][k1]*f[j3][j2][j1];
+            ag += w[k3][k2][k1]*g[j3][j2][j1];
+          }
+        }
+      }
+      a[0] += af;
+      a[1] += ag;
+    }
     private float[] _w1;
     private float[][] _w2;
     private float[][][] _w3;
@@ -970,6 +1146,39 @@ public class LocalSemblanceFilterX {
                b2*(a1*f[k3][k2][j1]+b1*f[k3][k2][k1]));
   }
 
+  // Adds w*f(x1,x2,x3) to a[0] and w*g(x1,x2,x3) to a[1], using the same
+  // trilinear interpolation weights for both images f and g.
+  private static void accumulateTrilinear(
+    float w, float x1, float x2, float x3, int n1, int n2, int n3, 
+    float[][][] f, float[][][] g, float[] a) 
+  {
+    int j1 = (int)x1;
+    int j2 = (int)x2;
+    int j3 = (int)x3;
+    int k1 = j1+1;
+    int k2 = j2+1;
+    int k3 = j3+1;
+    float b1 = x1-j1;
+    float b2 = x2-j2;
+    float b3 = x3-j3;
+    if (x1<0.0f) { j1 = 0; k1 = 1; b1 = 0.0f; }
+    if (x2<0.0f) { j2 = 0; k2 = 1; b2 = 0.0f; }
+    if (x3<0.0f) { j3 = 0; k3 = 1; b3 = 0.0f; }
+    if (k1>=n1) { j1 = n1-2; k1 = n1-1; b1 = 1.0f; }
+    if (k2>=n2) { j2 = n2-2; k2 = n2-1; b2 = 1.0f; }
+    if (k3>=n3) { j3 = n3-2; k3 = n3-1; b3 = 1.0f; }
+    float a1 = 1.0f-b1;
+    float a2 = 1.0f-b2;
+    float a3 = 1.0f-b3;
+    float a2a3 = a2*a3, b2a3 = b2*a3, a2b3 = a2*b3, b2b3 = b2*b3;
+    float[] fjj = f[j3][j2], fkj = f[j3][k2], fjk = f[k3][j2], fkk = f[k3][k2];
+    float[] gjj = g[j3][j2], gkj = g[j3][k2], gjk = g[k3][j2], gkk = g[k3][k2];
+    a[0] += w*(a2a3*(a1*fjj[j1]+b1*fjj[k1])+b2a3*(a1*fkj[j1]+b1*fkj[k1]) +
+               a2b3*(a1*fjk[j1]+b1*fjk[k1])+b2b3*(a1*fkk[j1]+b1*fkk[k1]));
+    a[1] += w*(a2a3*(a1*gjj[j1]+b1*gjj[k1])+b2a3*(a1*gkj[j1]+b1*gkj[k1]) +
+               a2b3*(a1*gjk[j1]+b1*gjk[k1])+b2b3*(a1*gkk[j1]+b1*gkk[k1]));
+  }
+
   private static final boolean TRACE = true;
   private static void trace(String s) {
     if (TRACE)
@@ -33,6 +33,26 @@ public class FastExplicitDiffusion {
     _d = d;
   }
 
+  /**
+   * Sets parameters for temporal blocking of 3D linear diffusion.
+   * Each thread advances a tile of m1*m2*m3 samples by nstep FED steps 
+   * at a time, in buffers that include a halo of nstep samples on each
+   * side of the tile. Larger nstep reduces memory traffic but increases
+   * the cost of recomputing halos.
+   * @param nstep number of FED steps per block; default is 2.
+   * @param m1 tile size in 1st dimension; default is 64.
+   * @param m2 tile size in 2nd dimension; default is 32.
+   * @param m3 tile size in 3rd dimension; default is 32.
+   */
+  public void setTemporalBlocking(int nstep, int m1, int m2, int m3) {
+    Check.argument(nstep>0,"nstep>0");
+    Check.argument(m1>0 && m2>0 && m3>0,"tile sizes are positive");
+    _kb = nstep;
+    _b1 = m1;
+    _b2 = m2;
+    _b3 = m3;
+  }
+
   public float[][] apply(
     float sigma, EigenTensors2 et, float[][] fx) 
   {
@@ -86,66 +106,31 @@ public class FastExplicitDiffusion {
   public float[][][] apply(
     float sigma, EigenTensors3 et,float[][][] fx) 
   {
-    float[][][] gx = copy(fx);
     float t = sigma*sigma*0.5f;
     FedStep fs = new FedStep(t,_m,_d);
     float[] ts = fs.getSteps(true);
-    int nc = ts.length;
-    Stopwatch sw = new Stopwatch();
-    sw.start();
-    int ik = 0;
-    int nk = _m*nc;
-    for (int m=0; m<_m; ++m) {
-    for (int ic=0; ic<nc; ++ic) {
-      if (ik>0) {
-        double timeUsed = sw.time();
-        double timeLeft = ((double)nk/(double)ik-1.0)*timeUsed;
-        int timeLeftSec = 1+(int)timeLeft;
-        trace("Linear diffusion: done in "+timeLeftSec+" seconds");
-      }
-      applyLaplacian(et,-ts[ic],copy(gx),gx);
-      ik++;
-    }}
-    sw.stop();
-    trace("Linear diffusion: done");
-    return gx;
+    return applyLinear(et,ts,fx);
   }
 
   public float[][][] apply(
-    float sigma, EigenTensors3 et,float[][][] wp, float[][][] fx) 
+    float sigma, final EigenTensors3 et, 
+    final float[][][] wp, float[][][] fx) 
   {
-    int n3 = fx.length;
-    int n2 = fx[0].length;
-    int n1 = fx[0][0].length;
-    for (int i3=0; i3<n3; ++i3) {
-    for (int i2=0; i2<n2; ++i2) {
-    for (int i1=0; i1<n1; ++i1) {
-      float wpi = wp[i3][i2][i1];
-      et.setEigenvalues(i1,i2,i3,0.0001f,wpi,1f);
-    }}}
-    float[][][] gx = copy(fx);
+    final int n3 = fx.length;
+    final int n2 = fx[0].length;
+    final int n1 = fx[0][0].length;
+    Parallel.loop(n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      for (int i2=0; i2<n2; ++i2) {
+      for (int i1=0; i1<n1; ++i1) {
+        float wpi = wp[i3][i2][i1];
+        et.setEigenvalues(i1,i2,i3,0.0001f,wpi,1f);
+      }}
+    }});
     float t = sigma*sigma*0.5f;
     FedStep fs = new FedStep(t,_m,_d);
     float[] ts = fs.getSteps(true);
-    int nc = ts.length;
-    Stopwatch sw = new Stopwatch();
-    sw.start();
-    int ik = 0;
-    int nk = _m*nc;
-    for (int m=0; m<_m; ++m) {
-    for (int ic=0; ic<nc; ++ic) {
-      if (ik>0) {
-        double timeUsed = sw.time();
-        double timeLeft = ((double)nk/(double)ik-1.0)*timeUsed;
-        int timeLeftSec = 1+(int)timeLeft;
-        trace("Linear diffusion: done in "+timeLeftSec+" seconds");
-      }
-      applyLaplacian(et,-ts[ic],copy(gx),gx);
-      ik++;
-    }}
-    sw.stop();
-    trace("Linear diffusion: done");
-    return gx;
+    return applyLinear(et,ts,fx);
   }
 
   public float[][][][] apply(
@@ -1029,6 +1014,137 @@ public class FastExplicitDiffusion {
   }
 
 
+  // Linear diffusion for all cycles of FED steps ts. Two full-size 
+  // buffers are used in ping-pong fashion, and each parallel pass over 
+  // tiles advances the diffusion by a block of several steps, so that
+  // no arrays are allocated for each step.
+  private float[][][] applyLinear(
+    EigenTensors3 et, float[] ts, float[][][] fx) 
+  {
+    int n3 = fx.length;
+    int n2 = fx[0].length;
+    int n1 = fx[0][0].length;
+    int nc = ts.length;
+    int nk = _m*nc;
+    float[] ss = new float[nk];
+    for (int m=0,ik=0; m<_m; ++m)
+      for (int ic=0; ic<nc; ++ic,++ik)
+        ss[ik] = -ts[ic];
+    float[][][] gx = copy(fx);
+    float[][][] gy = new float[n3][n2][n1];
+    Parallel.Unsafe<float[][][][]> tbu = new Parallel.Unsafe<float[][][][]>();
+    Stopwatch sw = new Stopwatch();
+    sw.start();
+    for (int ik=0; ik<nk; ik+=_kb) {
+      if (ik>0) {
+        double timeUsed = sw.time();
+        double timeLeft = ((double)nk/(double)ik-1.0)*timeUsed;
+        int timeLeftSec = 1+(int)timeLeft;
+        trace("Linear diffusion: done in "+timeLeftSec+" seconds");
+      }
+      applySteps(et,ss,ik,min(_kb,nk-ik),tbu,gx,gy);
+      float[][][] gt = gx; gx = gy; gy = gt;
+    }
+    sw.stop();
+    trace("Linear diffusion: done");
+    return gx;
+  }
+
+  // Applies nk steps ss[ks:ks+nk-1] to x, and stores the result in y. 
+  // Each tile is advanced in thread-local buffers that include a halo of
+  // nk samples, because each step propagates values by one sample. After
+  // nk steps, samples in the tile are exact; those in the halo are not.
+  // No halo is needed where a tile is on the boundary of the image.
+  private void applySteps(
+    final EigenTensors3 et, final float[] ss, final int ks, final int nk,
+    final Parallel.Unsafe<float[][][][]> tbu,
+    final float[][][] x, final float[][][] y) 
+  {
+    final int n3 = x.length;
+    final int n2 = x[0].length;
+    final int n1 = x[0][0].length;
+    final int m1 = min(_b1,n1);
+    final int m2 = min(_b2,n2);
+    final int m3 = min(_b3,n3);
+    final int kb = _kb;
+    final int nt1 = (n1+m1-1)/m1;
+    final int nt2 = (n2+m2-1)/m2;
+    final int nt3 = (n3+m3-1)/m3;
+    Parallel.loop(nt1*nt2*nt3,new Parallel.LoopInt() {
+    public void compute(int it) {
+      float[][][][] tb = tbu.get();
+      if (tb==null || tb[0].length<m3+2*kb || 
+          tb[0][0].length<m2+2*kb || tb[0][0][0].length<m1+2*kb)
+        tbu.set(tb=new float[2][m3+2*kb][m2+2*kb][m1+2*kb]);
+      int j1 = (it%nt1)*m1, l1 = min(m1,n1-j1);
+      int j2 = (it/nt1%nt2)*m2, l2 = min(m2,n2-j2);
+      int j3 = (it/nt1/nt2)*m3, l3 = min(m3,n3-j3);
+      int b1 = max(0,j1-nk), w1 = min(n1,j1+l1+nk)-b1;
+      int b2 = max(0,j2-nk), w2 = min(n2,j2+l2+nk)-b2;
+      int b3 = max(0,j3-nk), w3 = min(n3,j3+l3+nk)-b3;
+      float[][][] xt = tb[0], yt = tb[1];
+      for (int k3=0; k3<w3; ++k3)
+        for (int k2=0; k2<w2; ++k2)
+          System.arraycopy(x[b3+k3][b2+k2],b1,xt[k3][k2],0,w1);
+      for (int ik=0; ik<nk; ++ik) {
+        for (int k3=0; k3<w3; ++k3)
+          for (int k2=0; k2<w2; ++k2)
+            System.arraycopy(xt[k3][k2],0,yt[k3][k2],0,w1);
+        applyLaplacian(et,ss[ks+ik],b1,b2,b3,w1,w2,w3,xt,yt);
+        float[][][] tt = xt; xt = yt; yt = tt;
+      }
+      for (int k3=0; k3<l3; ++k3)
+        for (int k2=0; k2<l2; ++k2)
+          System.arraycopy(xt[j3-b3+k3][j2-b2+k2],j1-b1,y[j3+k3][j2+k2],j1,l1);
+    }});
+  }
+
+  // Computes y = y+s*L*x for one tile of w1*w2*w3 samples, beginning at
+  // sample (b1,b2,b3) of the image, as in apply22 but for all cells of 
+  // the tile, in one thread.
+  private static void applyLaplacian(
+    EigenTensors3 d, float s, int b1, int b2, int b3, int w1, int w2, int w3,
+    float[][][] x, float[][][] y) 
+  {
+    s *= 0.0625f;
+    float[] di = new float[6];
+    for (int i3=1; i3<w3; ++i3) {
+      for (int i2=1; i2<w2; ++i2) {
+        float[] x00 = x[i3  ][i2  ];
+        float[] x0m = x[i3  ][i2-1];
+        float[] xm0 = x[i3-1][i2  ];
+        float[] xmm = x[i3-1][i2-1];
+        float[] y00 = y[i3  ][i2  ];
+        float[] y0m = y[i3  ][i2-1];
+        float[] ym0 = y[i3-1][i2  ];
+        float[] ymm = y[i3-1][i2-1];
+        for (int i1=1,m1=0; i1<w1; ++i1,++m1) {
+          d.getTensor(b1+i1,b2+i2,b3+i3,di);
+          float d11 = di[0];
+          float d12 = di[1];
+          float d13 = di[2];
+          float d22 = di[3];
+          float d23 = di[4];
+          float d33 = di[5];
+          float xa = x00[i1]-xmm[m1];
+          float xb = x00[m1]-xmm[i1];
+          float xc = x0m[i1]-xm0[m1];
+          float xd = xm0[i1]-x0m[m1];
+          float x1 = xa-xb+xc+xd;
+          float x2 = xa+xb-xc+xd;
+          float x3 = xa+xb+xc-xd;
+          float y1 = (d11*x1+d12*x2+d13*x3)*s;
+          float y2 = (d12*x1+d22*x2+d23*x3)*s;
+          float y3 = (d13*x1+d23*x2+d33*x3)*s;
+          float ya = y1+y2+y3; y00[i1] += ya; ymm[m1] -= ya;
+          float yb = y1-y2+y3; y0m[i1] += yb; ym0[m1] -= yb;
+          float yc = y1+y2-y3; ym0[i1] += yc; y0m[m1] -= yc;
+          float yd = y1-y2-y3; ymm[i1] += yd; y00[m1] -= yd;
+        }
+      }
+    }
+  }
+
   private void applyLaplacian(final EigenTensors3 d, final float s, 
     final float[][][] x, final float[][][] y) 
   {
@@ -1166,5 +1282,9 @@ public class FastExplicitDiffusion {
 
   private int _m = 5; //number of cycles
   private float _d = 0.5f; //stability limit
+  private int _kb = 2; // number of FED steps per temporal block
+  private int _b1 = 64; // tile size in 1st dimension
+  private int _b2 = 32; // tile size in 2nd dimension
+  private int _b3 = 32; // tile size in 3rd dimension
   private SincInterpolator _si = new SincInterpolator();
 }
@@ -49,22 +49,41 @@ public class AcousticImpedanceInv3 {
     _d = d;
   }
 
+  /**
+   * Gets information from the global CG solver for the last inversion.
+   * @return the information; null, if no inversion yet.
+   */
+  public CgSolver.Info getInfo() {
+    return _info;
+  }
+
   public float[][][] applyForImpedance(float[][][] p,
     float[][][] r, float[][][] wp, float[] k1, float[] k2, float[] k3, float[] f) 
   {
-    int n3 = r.length;
-    int n2 = r[0].length;
-    int n1 = r[0][0].length;
-    float[][][] b = new float[n3][n2][n1];
     setInitial(p,k1,k2,k3,f);
-    VecArrayFloat3 vb = new VecArrayFloat3(b);
-    VecArrayFloat3 vp = new VecArrayFloat3(p);
-    CgSolver cs = new CgSolver(_small,_niter);
-    A3 a3 = new A3(_d,wp);
-    M3 m3 = new M3(_sigma1,_sigma2,_sigma3,wp,k1,k2,k3);
-    vb.zero();
-    makeRhs(r,b);
-    cs.solve(a3,m3,vb,vp);
+    solve(p,r,wp,k1,k2,k3);
+    return p;
+  }
+
+  /**
+   * Inverts for impedance, starting from a prior solution. The prior
+   * solution may be that of a previous inversion with slightly different
+   * smoothness, wells or seismic data, so that fewer iterations are required.
+   * @param p0 prior solution; not modified.
+   * @param r array of reflectivities.
+   * @param wp array of weights for smoothing; may be null.
+   * @param k1 array of 1st-dimension sample indices of well log values.
+   * @param k2 array of 2nd-dimension sample indices of well log values.
+   * @param k3 array of 3rd-dimension sample indices of well log values.
+   * @param f array of well log values.
+   * @return array of impedances.
+   */
+  public float[][][] updateImpedance(float[][][] p0,
+    float[][][] r, float[][][] wp, float[] k1, float[] k2, float[] k3, float[] f) 
+  {
+    float[][][] p = copy(p0);
+    setWells(p,k1,k2,k3,f);
+    solve(p,r,wp,k1,k2,k3);
     return p;
   }
 
@@ -103,15 +122,7 @@ public class AcousticImpedanceInv3 {
     for (int i1=0; i1<n1; ++i1) {
       p[i3][i2][i1] = fa;
     }}}
-    for (int ip=0; ip<np; ++ip) {
-      int i1 = round(k1[ip]);
-      int i2 = round(k2[ip]);
-      int i3 = round(k3[ip]);
-      if(i1<0) i1=0; if(i1>n1-1) i1=n1-1;
-      if(i2<0) i2=0; if(i2>n2-1) i2=n2-1;
-      if(i3<0) i3=0; if(i3>n3-1) i3=n3-1;
-      p[i3][i2][i1] = f[ip];
-    }
+    setWells(p,k1,k2,k3,f);
   }
 
   ///////////////////////////////////////////////////////////////////////////
@@ -122,8 +133,46 @@ public class AcousticImpedanceInv3 {
   private float _sigma3 = 6.0f; // half-width of smoother in 3rd dimension
   private float _small = 0.010f; // stop CG iterations if residuals are small
   private int _niter = 200; // maximum number of inner CG iterations
+  private CgSolver.Info _info = null; // info from last global CG solve
   private static float _sc = 0.5f;
 
+  private void setWells(
+    float[][][] p, float[] k1, float[] k2, float[] k3, float[] f) 
+  {
+    int np = k1.length;
+    int n3 = p.length;
+    int n2 = p[0].length;
+    int n1 = p[0][0].length;
+    for (int ip=0; ip<np; ++ip) {
+      int i1 = round(k1[ip]);
+      int i2 = round(k2[ip]);
+      int i3 = round(k3[ip]);
+      if(i1<0) i1=0; if(i1>n1-1) i1=n1-1;
+      if(i2<0) i2=0; if(i2>n2-1) i2=n2-1;
+      if(i3<0) i3=0; if(i3>n3-1) i3=n3-1;
+      p[i3][i2][i1] = f[ip];
+    }
+  }
+
+  // Solves for impedances p, which on input contain the initial model
+  // with well values set.
+  private void solve(
+    float[][][] p, float[][][] r, float[][][] wp, 
+    float[] k1, float[] k2, float[] k3)
+  {
+    int n3 = r.length;
+    int n2 = r[0].length;
+    int n1 = r[0][0].length;
+    float[][][] b = new float[n3][n2][n1];
+    makeRhs(r,b);
+    VecArrayFloat3 vb = new VecArrayFloat3(b);
+    VecArrayFloat3 vp = new VecArrayFloat3(p);
+    CgSolver cs = new CgSolver(_small,_niter);
+    A3 a3 = new A3(_d,wp);
+    M3 m3 = new M3(_sigma1,_sigma2,_sigma3,wp,k1,k2,k3);
+    _info = cs.solve(a3,m3,vb,vp);
+  }
+
   private static class A3 implements CgSolver.A {
     A3(Tensors3 et, float[][][] w) { 
       _et=et;
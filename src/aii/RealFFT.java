@@ -107,6 +107,44 @@ public final class RealFFT {
   }
 
   
+  /**
+   * Forward transform into a packed array, without allocating arrays when
+   * this transform is reused for series of the same length.
+   * Packed array a[0] is the real part at zero frequency, a[1] is the real
+   * part at the Nyquist frequency, and a[2*i] and a[2*i+1] are the real and
+   * imaginary parts for frequency index i, for 0 &lt; i &lt; nt/2.
+   * @param r input real series with even length nt.
+   * @param a output packed array with length nt; may be the same as r.
+   */
+  public void forward( float[] r, float[] a ) {
+    _nt = r.length;
+    _nf = _nt/2 + 1;
+    checkTable();
+    if ( a != r ) System.arraycopy( r, 0, a, 0, _nt );
+    _a = a;
+    fft( 1 );
+  }
+
+  /**
+   * Inverse transform from a packed array, without allocating arrays when
+   * this transform is reused for series of the same length.
+   * @param a input packed array with even length nt, as for forward.
+   * @param r output real series with length nt; may be the same as a.
+   */
+  public void inverse( float[] a, float[] r ) {
+    _nt = a.length;
+    _nf = _nt/2 + 1;
+    checkTable();
+    if ( r != a ) System.arraycopy( a, 0, r, 0, _nt );
+    _a = r;
+    fft( -1 );
+    float scale = 2.0f/_nt;
+    for (int i = 0; i < _nt; i++){
+      _a[i] *= scale;
+    }
+  }
+
+  
   private void computeTable() { 
     _table = new float[_nf];
     _table[0] = 1.0f;
@@ -188,7 +226,10 @@ public final class RealFFT {
     _nfft = _a.length/2;
     if ( _nfft < 2 ) return;
     _nfft2 = 2 * _nfft;
-    _aw = new float[_nt];
+    if ( _aw == null || _aw.length != _nt )
+      _aw = new float[_nt];
+    else
+      java.util.Arrays.fill( _aw, 0.0f );
     
     c1 = 0.0f;  c2 = 0.0f;  c3 = 0.0f;  c4 = 0.0f;
     s1 = 0.0f;  s2 = 0.0f;  s3 = 0.0f;  s4 = 0.0f;
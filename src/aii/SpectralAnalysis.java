@@ -1,5 +1,7 @@
 package aii;
 
+import edu.mines.jtk.util.Parallel;
+
 public class SpectralAnalysis {
   private float[]   _t, _amp = null, _faz = null;
   private float     _dt, _df, _avg;
@@ -172,4 +174,207 @@ public class SpectralAnalysis {
 
 	}
 	
+
+  /**
+   * Returns the length of padded series used for traces with n1 samples
+   * by the batch methods. The length is even and half of it has only
+   * factors 2, 3 and 5.
+   */
+  public static int paddedLength( int n1 ) {
+    return 2*RealFFT.nfft( (n1+1)/2 );
+  }
+
+  /**
+   * Computes amplitude and phase spectra for all traces in a 3D volume.
+   * Inline slabs f[i3] are processed in parallel, and each thread reuses
+   * its own FFT and padded work arrays. Traces are padded with zeros to
+   * paddedLength(n1) samples.
+   * @param f array[n3][n2][n1] of traces.
+   * @param normalize true, to normalize amplitudes of each trace by their
+   *  maximum; false, otherwise.
+   * @return array {amp,faz} of amplitudes and phases for all traces.
+   */
+  public static float[][][][] forward(
+    final float[][][] f, final boolean normalize ) 
+  {
+    final int n3 = f.length;
+    final float[][][] amp = new float[n3][][];
+    final float[][][] faz = new float[n3][][];
+    final Parallel.Unsafe<Workspace> wsu = new Parallel.Unsafe<Workspace>();
+    Parallel.loop(n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      float[][][] af = forward( workspace(wsu,f[i3][0].length), f[i3], normalize );
+      amp[i3] = af[0];
+      faz[i3] = af[1];
+    }});
+    return new float[][][][]{amp,faz};
+  }
+
+  /**
+   * Computes amplitude and phase spectra for all traces in an inline slab.
+   * @param f array[n2][n1] of traces.
+   * @param normalize true, to normalize amplitudes of each trace by their
+   *  maximum; false, otherwise.
+   * @return array {amp,faz} of amplitudes and phases for all traces.
+   */
+  public static float[][][] forward( float[][] f, boolean normalize ) {
+    return forward( new Workspace(f[0].length), f, normalize );
+  }
+
+  /**
+   * Spectrally whitens all traces in a 3D volume. For each trace, the
+   * spectrum is divided by its amplitude spectrum, smoothed as in method
+   * smooth, plus a small fraction of the maximum smoothed amplitude.
+   * Inline slabs f[i3] are processed in parallel, and each thread reuses
+   * its own FFT and padded work arrays.
+   * @param n length of triangular smoother for amplitude spectra.
+   * @param eps fraction of maximum amplitude added for stability.
+   * @param f array[n3][n2][n1] of traces.
+   * @return array[n3][n2][n1] of whitened traces.
+   */
+  public static float[][][] whiten(
+    final int n, final float eps, final float[][][] f ) 
+  {
+    final int n3 = f.length;
+    final float[][][] g = new float[n3][][];
+    final Parallel.Unsafe<Workspace> wsu = new Parallel.Unsafe<Workspace>();
+    Parallel.loop(n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      g[i3] = whiten( workspace(wsu,f[i3][0].length), n, eps, f[i3] );
+    }});
+    return g;
+  }
+
+  /**
+   * Spectrally whitens all traces in an inline slab.
+   * @param n length of triangular smoother for amplitude spectra.
+   * @param eps fraction of maximum amplitude added for stability.
+   * @param f array[n2][n1] of traces.
+   * @return array[n2][n1] of whitened traces.
+   */
+  public static float[][] whiten( int n, float eps, float[][] f ) {
+    return whiten( new Workspace(f[0].length), n, eps, f );
+  }
+
+  // FFT and padded work arrays owned by one thread, and reused for all
+  // traces that thread transforms.
+  private static class Workspace {
+    RealFFT fft = new RealFFT();
+    int n1, nt, nf;
+    float[] a; // padded trace and packed spectrum
+    float[] amp, samp; // amplitudes and smoothed amplitudes
+    Workspace( int n1 ) {
+      this.n1 = n1;
+      nt = paddedLength( n1 );
+      nf = nt/2+1;
+      a = new float[nt];
+      amp = new float[nf];
+      samp = new float[nf];
+    }
+  }
+
+  private static Workspace workspace( Parallel.Unsafe<Workspace> wsu, int n1 ) {
+    Workspace ws = wsu.get();
+    if ( ws == null || ws.n1 != n1 )
+      wsu.set( ws = new Workspace(n1) );
+    return ws;
+  }
+
+  // Pads a trace with zeros and transforms it to a packed spectrum.
+  private static void transform( Workspace ws, float[] t ) {
+    System.arraycopy( t, 0, ws.a, 0, ws.n1 );
+    java.util.Arrays.fill( ws.a, ws.n1, ws.nt, 0.0f );
+    ws.fft.forward( ws.a, ws.a );
+  }
+
+  // Amplitudes for a packed spectrum.
+  private static void amplitudes( float[] a, float[] amp ) {
+    int nf = amp.length;
+    amp[0]    = Math.abs( a[0] );
+    amp[nf-1] = Math.abs( a[1] );
+    for (int i = 1; i < nf-1; i++) {
+      float ar = a[2*i], ai = a[2*i+1];
+      amp[i] = (float)Math.sqrt( ar*ar+ai*ai );
+    }
+  }
+
+  private static float[][][] forward( 
+    Workspace ws, float[][] f, boolean normalize ) 
+  {
+    int n2 = f.length;
+    int nf = ws.nf;
+    float[][] amp = new float[n2][nf];
+    float[][] faz = new float[n2][nf];
+    for (int i2 = 0; i2 < n2; i2++) {
+      transform( ws, f[i2] );
+      float[] a = ws.a;
+      float[] ampi = amp[i2];
+      float[] fazi = faz[i2];
+      amplitudes( a, ampi );
+      fazi[0]    = (float)Math.atan2( 0.0f, a[0] );
+      fazi[nf-1] = (float)Math.atan2( 0.0f, a[1] );
+      for (int i = 1; i < nf-1; i++) {
+        fazi[i] = (float)Math.atan2( a[2*i+1], a[2*i] );
+      }
+      if (normalize) {
+        float ampmax = 0.0f;
+        for (int i = 0; i < nf; i++) {
+          ampmax = Math.max( ampi[i], ampmax );
+        }
+        if (ampmax > 0.0f) {
+          for (int i = 0; i < nf; i++) {
+            ampi[i] /= ampmax;
+          }
+        }
+      }
+    }
+    return new float[][][]{amp,faz};
+  }
+
+  private static float[][] whiten(
+    Workspace ws, int n, float eps, float[][] f )
+  {
+    int n2 = f.length;
+    int nf = ws.nf;
+    float[] a = ws.a;
+    float[] amp = ws.amp;
+    float[] samp = ws.samp;
+    float[][] g = new float[n2][ws.n1];
+    for (int i2 = 0; i2 < n2; i2++) {
+      transform( ws, f[i2] );
+      amplitudes( a, amp );
+      smooth( n, amp, samp );
+      float smax = 0.0f;
+      for (int i = 0; i < nf; i++) {
+        smax = Math.max( samp[i], smax );
+      }
+      if (smax == 0.0f) continue;
+      float sadd = eps*smax;
+      a[0] /= samp[0]+sadd;
+      a[1] /= samp[nf-1]+sadd;
+      for (int i = 1; i < nf-1; i++) {
+        float si = samp[i]+sadd;
+        a[2*i]   /= si;
+        a[2*i+1] /= si;
+      }
+      ws.fft.inverse( a, a );
+      System.arraycopy( a, 0, g[i2], 0, ws.n1 );
+    }
+    return g;
+  }
+
+  // Two-sided triangular smoothing of amplitudes, as in method smooth,
+  // but without normalization.
+  private static void smooth( int n, float[] amp, float[] samp ) {
+    int nf = amp.length;
+    for (int i = 0; i < nf; i++) {
+      float si = amp[i];
+      for (int j = 1; j < n; j++) {
+        float sj = (float)(n-j) / (float)n;
+        if ( i+j < nf ) si += amp[i+j] * sj;
+        if ( i-j >= 0 ) si += amp[i-j] * sj;
+      }
+      samp[i] = si;
+    }
+  }
 }
@@ -6,13 +6,18 @@ available at http://www.eclipse.org/legal/cpl-v10.html
 ****************************************************************************/
 package flc;
 
+import java.io.IOException;
 import java.util.*;
 
 import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.io.ArrayFile;
 import edu.mines.jtk.util.*;
 import edu.mines.jtk.interp.*;
 import static edu.mines.jtk.util.ArrayMath.*;
 
+import util.GridPyramid;
+import util.ShiftWarper;
+
 
 /**
  * Flattens and unflattens locally planar features in a 3D image.
@@ -85,6 +90,24 @@ public class Flattener3 {
       return apply(u1,f);
     }
 
+    /**
+     * Uses these mappings to flatten multiple images in one pass.
+     * @param f array {f1,f2,...} of images to flatten.
+     * @return array of flattened images.
+     */
+    public float[][][][] flatten(float[][][][] f) {
+      return apply(x1,f);
+    }
+
+    /**
+     * Uses these mappings to unflatten multiple images in one pass.
+     * @param f array {f1,f2,...} of images to unflatten.
+     * @return array of unflattened images.
+     */
+    public float[][][][] unflatten(float[][][][] f) {
+      return apply(u1,f);
+    }
+
     /**
      * Gets the flattening shifts s(u1,u2,u3) = u1 - x1(u1,u2,u3).
      * @return the flattening shifts.
@@ -129,30 +152,40 @@ public class Flattener3 {
       return r;
     }
 
+    private ShiftWarper.Method _method; // for flattening and unflattening
+
     private Mappings(
       Sampling s1, Sampling s2, Sampling s3, 
-      float[][][] u1, float[][][] x1) 
+      float[][][] u1, float[][][] x1, ShiftWarper.Method method) 
     {
       this.s1 = s1;
       this.s2 = s2;
       this.s3 = s3;
       this.u1 = u1;
       this.x1 = x1;
+      _method = method;
     }
 
-    private float[][][] apply(final float[][][] ux, final float[][][] f) {
-      final int n1 = s1.getCount();
-      final int n2 = s2.getCount();
-      final int n3 = s3.getCount();
-      final double d1 = s1.getDelta();
-      final double f1 = s1.getFirst();
-      final SincInterpolator si = new SincInterpolator();
-      final float[][][] g = new float[n3][n2][n1];
-      Parallel.loop(n3,new Parallel.LoopInt() {
-      public void compute(int i3) {
-        for (int i2=0; i2<n2; ++i2)
-          si.interpolate(n1,d1,f1,f[i3][i2],n1,ux[i3][i2],g[i3][i2]);
-      }});
+    private float[][][] apply(float[][][] ux, float[][][] f) {
+      int n1 = s1.getCount();
+      int n2 = s2.getCount();
+      int n3 = s3.getCount();
+      double d1 = s1.getDelta();
+      double f1 = s1.getFirst();
+      float[][][] g = new float[n3][n2][n1];
+      new ShiftWarper(_method).applyMapping(d1,f1,ux,f,g);
+      return g;
+    }
+
+    private float[][][][] apply(float[][][] ux, float[][][][] f) {
+      int nf = f.length;
+      int n1 = s1.getCount();
+      int n2 = s2.getCount();
+      int n3 = s3.getCount();
+      double d1 = s1.getDelta();
+      double f1 = s1.getFirst();
+      float[][][][] g = new float[nf][n3][n2][n1];
+      new ShiftWarper(_method).applyMapping(d1,f1,ux,f,g);
       return g;
     }
   }
@@ -192,6 +225,43 @@ public class Flattener3 {
     _niter = niter;
   }
 
+  /**
+   * Sets the method used by mappings to flatten and unflatten images.
+   * Mappings use the method set when they are computed.
+   * @param method the interpolation method; default is 8-point sinc.
+   */
+  public void setInterpolation(ShiftWarper.Method method) {
+    _method = method;
+  }
+
+  /**
+   * Sets the number of inlines (constant i3) per slab for methods that
+   * flatten images in files. Memory used by each thread is proportional
+   * to this number.
+   * @param m3 number of inlines per slab; default is 8.
+   */
+  public void setSlabSize(int m3) {
+    Check.argument(m3>0,"m3>0");
+    _m3 = m3;
+  }
+
+  /**
+   * Sets the number of levels for coarse-to-fine computation of shifts.
+   * With more than one level, shifts are first computed for slopes and
+   * planarities on a grid coarsened by a factor of two, with smoothings
+   * halved. Large vertical shifts needed to flatten structures with much
+   * relief then propagate laterally in few iterations. Those shifts,
+   * interpolated and doubled, are the initial guess on the finer grid,
+   * where iterations stop when residuals are as small as for a solve
+   * without that guess. Grids are coarsened only while they remain at
+   * least {@link util.GridPyramid#NMIN} samples in every dimension.
+   * @param nlevel number of levels, including the finest; default is 1.
+   */
+  public void setLevels(int nlevel) {
+    Check.argument(nlevel>=1,"nlevel>=1");
+    _nlevel = nlevel;
+  }
+
   /**
    * Gets mappings computed from specified slopes and planarities.
    * @param s1 sampling of 1st dimension.
@@ -221,15 +291,7 @@ public class Flattener3 {
     // Compute shifts r(x1,x2,x3), in samples.
     float[][][] b = new float[n3][n2][n1]; // right-hand side
     float[][][] r = new float[n3][n2][n1]; // shifts, in samples
-    VecArrayFloat3 vb = new VecArrayFloat3(b);
-    VecArrayFloat3 vr = new VecArrayFloat3(r);
-    Smoother3 smoother3 = new Smoother3(n1,n2,n3,_sigma1,_sigma2,_sigma3,ep);
-    A3 a3 = new A3(smoother3,_weight1,ep,p2,p3);
-    CgSolver cs = new CgSolver(_small,_niter);
-    makeRhs(ep,p2,p3,b);
-    smoother3.applyTranspose(b);
-    cs.solve(a3,vb,vr);
-    smoother3.apply(r);
+    computeShifts(_nlevel,_sigma1,_sigma2,_sigma3,ep,p2,p3,b,r);
     cleanShifts(r);
 
     // Compute u1(x1,x2,x3).
@@ -252,7 +314,7 @@ public class Flattener3 {
         ii.invert(u1[i3][i2],x1[i3][i2]);
     }});
 
-    return new Mappings(s1,s2,s3,u1,x1);
+    return new Mappings(s1,s2,s3,u1,x1,_method);
   }
 
   public float[][][] compositeRGT(
@@ -304,6 +366,116 @@ public class Flattener3 {
     return g;
   }
 
+  /**
+   * Flattens multiple images using a relative geologic time volume.
+   * For each trace, the RGT u1(x1) is inverted to x1(u1) only once, 
+   * in a single monotone sweep, and then used to resample all images. 
+   * Unlike the method that flattens one image, this method does not
+   * modify u1 and does not compute a full array x1(u1,x2,x3).
+   * @param sx1 sampling of x1.
+   * @param su1 sampling of u1 for flattened images.
+   * @param u1 array[n3][n2][nx1] of RGT.
+   * @param f array[nf][n3][n2][nx1] of images to flatten.
+   * @return array[nf][n3][n2][nu1] of flattened images.
+   */
+  public float[][][][] flatten(
+    final Sampling sx1, final Sampling su1, 
+    final float[][][] u1, final float[][][][] f) 
+  {
+    final int nf = f.length;
+    final int n3 = u1.length;
+    final int n2 = u1[0].length;
+    final int nx1 = sx1.getCount();
+    final int nu1 = su1.getCount();
+    final float[][][][] g = new float[nf][n3][n2][nu1];
+    final Parallel.Unsafe<TraceBuffers> tbu = 
+      new Parallel.Unsafe<TraceBuffers>();
+    Parallel.loop(n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      TraceBuffers tb = tbu.get();
+      if (tb==null)
+        tbu.set(tb=new TraceBuffers(nf,nx1,nu1));
+      for (int i2=0; i2<n2; ++i2) {
+        for (int jf=0; jf<nf; ++jf) {
+          tb.f[jf] = f[jf][i3][i2];
+          tb.g[jf] = g[jf][i3][i2];
+        }
+        flattenTrace(sx1,su1,u1[i3][i2],tb);
+      }
+    }});
+    return g;
+  }
+
+  /**
+   * Flattens multiple images in files using an RGT volume in a file.
+   * Files are read and written one slab of inlines at a time, and slabs
+   * are processed in parallel, so that memory used is proportional to 
+   * the slab size, not to the size of the images. All files contain 
+   * floats with big-endian byte order.
+   * @param sx1 sampling of x1.
+   * @param su1 sampling of u1 for flattened images.
+   * @param n2 number of samples in 2nd dimension.
+   * @param n3 number of samples in 3rd dimension.
+   * @param u1File name of the file with RGT u1[n3][n2][nx1].
+   * @param fFiles names of the files with images f[n3][n2][nx1].
+   * @param gFiles names of the files for flattened images g[n3][n2][nu1].
+   */
+  public void flatten(
+    final Sampling sx1, final Sampling su1, final int n2, final int n3,
+    String u1File, String[] fFiles, String[] gFiles) 
+  {
+    Check.argument(fFiles.length==gFiles.length,"one output per input");
+    final int nf = fFiles.length;
+    final int nx1 = sx1.getCount();
+    final int nu1 = su1.getCount();
+    final int m3 = min(_m3,n3);
+    final int ns = (n3+m3-1)/m3;
+    final ArrayFile[] afs = new ArrayFile[nf];
+    final ArrayFile[] ags = new ArrayFile[nf];
+    try {
+      final ArrayFile afu = new ArrayFile(u1File,"r");
+      try {
+        for (int jf=0; jf<nf; ++jf) {
+          afs[jf] = new ArrayFile(fFiles[jf],"r");
+          ags[jf] = new ArrayFile(gFiles[jf],"rw");
+        }
+        final Parallel.Unsafe<SlabBuffers> sbu = 
+          new Parallel.Unsafe<SlabBuffers>();
+        Parallel.loop(ns,new Parallel.LoopInt() {
+        public void compute(int is) {
+          SlabBuffers sb = sbu.get();
+          if (sb==null)
+            sbu.set(sb=new SlabBuffers(nf,m3,n2,nx1,nu1));
+          int j3 = is*m3;
+          int l3 = min(m3,n3-j3);
+          readSlab(afu,j3,l3,nx1,n2,sb.u);
+          for (int jf=0; jf<nf; ++jf)
+            readSlab(afs[jf],j3,l3,nx1,n2,sb.f[jf]);
+          TraceBuffers tb = sb.tb;
+          for (int k3=0; k3<l3; ++k3) {
+            for (int i2=0; i2<n2; ++i2) {
+              for (int jf=0; jf<nf; ++jf) {
+                tb.f[jf] = sb.f[jf][k3][i2];
+                tb.g[jf] = sb.g[jf][k3][i2];
+              }
+              flattenTrace(sx1,su1,sb.u[k3][i2],tb);
+            }
+          }
+          for (int jf=0; jf<nf; ++jf)
+            writeSlab(ags[jf],j3,l3,nu1,n2,sb.g[jf]);
+        }});
+      } finally {
+        afu.close();
+        for (int jf=0; jf<nf; ++jf) {
+          if (afs[jf]!=null) afs[jf].close();
+          if (ags[jf]!=null) ags[jf].close();
+        }
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
   public float[][][] resampleRgt(
     Sampling s1, int[][][] uc, float[][][] u1) {
     Object[] ob = rgtSampling(s1,uc,u1);
@@ -470,6 +642,61 @@ public class Flattener3 {
   private float _sigma3 = 6.0f; // precon smoothing extent for 3rd dim
   private float _small = 0.01f; // stop CG iterations if residuals small
   private int _niter = 1000; // maximum number of CG iterations
+  private int _m3 = 8; // number of inlines per slab when flattening files
+  private ShiftWarper.Method _method = ShiftWarper.Method.SINC8;
+  private int _nlevel = 1; // number of levels for coarse-to-fine shifts
+
+  // Computes shifts r, in samples, for specified smoothings. For more than
+  // one level, shifts computed on a coarser grid are the initial guess.
+  // Because the solver works on the smoothed variable, it then solves for
+  // the correction to that guess.
+  private void computeShifts(
+    int nlevel, float sigma1, float sigma2, float sigma3,
+    float[][][] ep, float[][][] p2, float[][][] p3,
+    float[][][] b, float[][][] r)
+  {
+    int n3 = r.length;
+    int n2 = r[0].length;
+    int n1 = r[0][0].length;
+    float[][][] r0 = null; // initial guess from coarser grid, if any
+    if (nlevel>1 && GridPyramid.canCoarsen(r)) {
+      int m3 = (n3+1)/2;
+      int m2 = (n2+1)/2;
+      int m1 = (n1+1)/2;
+      float[][][] rc = new float[m3][m2][m1];
+      computeShifts(nlevel-1,0.5f*sigma1,0.5f*sigma2,0.5f*sigma3,
+        (ep!=null)?GridPyramid.coarsen(ep):null,
+        GridPyramid.coarsen(p2),GridPyramid.coarsen(p3),
+        new float[m3][m2][m1],rc);
+      r0 = new float[n3][n2][n1];
+      GridPyramid.refine(2.0f,rc,r0);
+    }
+    VecArrayFloat3 vb = new VecArrayFloat3(b);
+    VecArrayFloat3 vr = new VecArrayFloat3(r);
+    Smoother3 smoother3 = new Smoother3(n1,n2,n3,sigma1,sigma2,sigma3,ep);
+    A3 a3 = new A3(smoother3,_weight1,ep,p2,p3);
+    makeRhs(ep,p2,p3,b);
+    float small = _small;
+    if (r0!=null) {
+      float[][][] t = new float[n3][n2][n1];
+      applyLhs(_weight1,ep,p2,p3,r0,t);
+      sub(b,t,t);
+      smoother3.applyTranspose(b);
+      smoother3.applyTranspose(t);
+      float bnorm = GridPyramid.norm(b);
+      float tnorm = GridPyramid.norm(t);
+      small = (tnorm>bnorm*_small)?_small*bnorm/tnorm:1.0f;
+      copy(t,b);
+    } else {
+      smoother3.applyTranspose(b);
+    }
+    CgSolver cs = new CgSolver(small,_niter);
+    cs.solve(a3,vb,vr);
+    smoother3.apply(r);
+    if (r0!=null)
+      add(r0,r,r);
+  }
+
 
   // Conjugate-gradient operators.
   private static class A3 implements CgSolver.A {
@@ -835,6 +1062,92 @@ public class Flattener3 {
   }
 
 
+  // Buffers owned by one thread and reused for all traces it flattens.
+  private static class TraceBuffers {
+    float[][] f,g; // input and output traces, one per image
+    float[] u; // cleaned RGT for one trace
+    float[] x; // inverse mapping x1(u1) for one trace
+    SincInterpolator si; // interpolator for flattened samples
+    TraceBuffers(int nf, int nx1, int nu1) {
+      f = new float[nf][];
+      g = new float[nf][];
+      u = new float[nx1];
+      x = new float[nu1];
+      si = new SincInterpolator();
+    }
+  }
+
+  // Buffers owned by one thread and reused for all slabs it flattens.
+  private static class SlabBuffers {
+    float[][][] u; // slab of RGT
+    float[][][][] f,g; // input and output slabs, one per image
+    TraceBuffers tb;
+    SlabBuffers(int nf, int m3, int n2, int nx1, int nu1) {
+      u = new float[m3][n2][nx1];
+      f = new float[nf][m3][n2][nx1];
+      g = new float[nf][m3][n2][nu1];
+      tb = new TraceBuffers(nf,nx1,nu1);
+    }
+  }
+
+  // Flattens one trace of each image. The RGT is first made strictly
+  // increasing, as in cleanRGT, and then inverted in one monotone sweep,
+  // with linear extrapolation beyond the first and last samples, as in 
+  // InverseInterpolator.
+  private static void flattenTrace(
+    Sampling sx1, Sampling su1, float[] u1, TraceBuffers tb) 
+  {
+    int nx1 = sx1.getCount();
+    int nu1 = su1.getCount();
+    double dx1 = sx1.getDelta();
+    double fx1 = sx1.getFirst();
+    double du1 = su1.getDelta();
+    double fu1 = su1.getFirst();
+    float[] u = tb.u;
+    float[] x = tb.x;
+    u[0] = u1[0];
+    for (int i1=1; i1<nx1; ++i1)
+      u[i1] = max(u1[i1],u[i1-1]+0.01f);
+    int j1 = 0;
+    for (int k1=0; k1<nu1; ++k1) {
+      float uk = (float)(fu1+k1*du1);
+      while (j1<nx1-2 && uk>u[j1+1])
+        ++j1;
+      float s = (uk-u[j1])/(u[j1+1]-u[j1]);
+      x[k1] = (float)(fx1+(j1+s)*dx1);
+    }
+    for (int jf=0; jf<tb.f.length; ++jf)
+      tb.si.interpolate(nx1,dx1,fx1,tb.f[jf],nu1,x,tb.g[jf]);
+  }
+
+  private static void readSlab(
+    ArrayFile af, int j3, int l3, int n1, int n2, float[][][] fs)
+  {
+    try {
+      synchronized(af) {
+        af.seek(4L*n1*n2*j3);
+        for (int k3=0; k3<l3; ++k3)
+          af.readFloats(fs[k3]);
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  private static void writeSlab(
+    ArrayFile af, int j3, int l3, int n1, int n2, float[][][] gs)
+  {
+    try {
+      synchronized(af) {
+        af.seek(4L*n1*n2*j3);
+        for (int k3=0; k3<l3; ++k3)
+          af.writeFloats(gs[k3]);
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
   private class FloatList {
     public int n = 0;
     public float[] a = new float[1024];
@@ -145,6 +145,19 @@ public class MorletTransform {
     return y;
   }
 
+  /**
+   * Computes complex-valued y(t,f) for one frequency without allocation.
+   * Kernels are shared and not modified, so this method may be called
+   * concurrently by different threads with different output arrays.
+   * @param jf index of the frequency sampled by this transform.
+   * @param x input array[nt] of x(t) to be transformed.
+   * @param yr output array[nt] of real parts of y(t,f).
+   * @param yi output array[nt] of imaginary parts of y(t,f).
+   */
+  public void apply(int jf, float[] x, float[] yr, float[] yi) {
+    _ks[jf].apply(x,yr,yi);
+  }
+
   /**
    * Returns the magnitude (abs) of a complex-valued y(t,f).
    * @param array[2][nf][nt] {yr,yi} of y(t,f).
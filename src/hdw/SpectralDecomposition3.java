@@ -0,0 +1,345 @@
+package hdw;
+
+import java.io.IOException;
+import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.io.ArrayFile;
+import edu.mines.jtk.util.*;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * Slab-streaming spectral decomposition of 3D images with a Morlet transform.
+ * <p>
+ * Instead of materializing complex-valued y(t,f) for all frequencies of
+ * a volume, this class decomposes slabs of consecutive inlines (constant
+ * i3) in parallel and writes only the requested attributes to a file.
+ * Each thread owns one slab buffer and one pair of complex work arrays
+ * that are reused for all slabs it processes, and Morlet kernels are
+ * computed once and shared by all threads. Therefore, memory used is
+ * bounded by about one slab per thread, regardless of survey size.
+ * <p>
+ * Output files contain one or more volumes stored one after another,
+ * each volume with the layout of an array[n3][n2][n1] of floats. Slabs
+ * are written as bricks at their positions within each of these volumes.
+ * The number of output volumes is {@link #getVolumeCount(Attribute)}.
+ *
+ * @author Xinming Wu, Colorado School of Mines
+ * @version 2016.12.08
+ */
+public class SpectralDecomposition3 {
+
+  /**
+   * Attributes computed from the Morlet transform.
+   */
+  public enum Attribute {
+    /**
+     * Amplitudes for the selected frequency bands, one volume per band.
+     */
+    AMPLITUDE,
+    /**
+     * Frequency (in cycles per unit time) of the peak amplitude.
+     */
+    PEAK_FREQUENCY,
+    /**
+     * Peak amplitude over all frequencies.
+     */
+    PEAK_AMPLITUDE,
+    /**
+     * Red, green and blue volumes, for amplitudes of three bands.
+     */
+    RGB
+  }
+
+  /**
+   * Constructs a spectral decomposition for the specified transform.
+   * By default, amplitudes are output for all frequencies of the
+   * transform, and RGB bands are the lowest, middle and highest ones.
+   * @param mt the Morlet transform.
+   */
+  public SpectralDecomposition3(MorletTransform mt) {
+    _mt = mt;
+    _sf = mt.getFrequencySampling();
+    int nf = _sf.getCount();
+    _jfs = rampint(0,1,nf);
+    _jrgb = new int[]{0,nf/2,nf-1};
+  }
+
+  /**
+   * Sets the number of inlines in each slab.
+   * Memory used is about one slab per thread for every output volume
+   * plus one slab per thread for input read from a file.
+   * @param m3 number of inlines per slab; default is 8.
+   */
+  public void setSlabSize(int m3) {
+    Check.argument(m3>0,"m3>0");
+    _m3 = m3;
+  }
+
+  /**
+   * Sets indices of frequencies for which amplitudes are output.
+   * @param jfs array of frequency indices.
+   */
+  public void setBands(int[] jfs) {
+    int nf = _sf.getCount();
+    for (int jf:jfs)
+      Check.argument(0<=jf && jf<nf,"0<=jf<nf");
+    _jfs = copy(jfs);
+  }
+
+  /**
+   * Sets frequency indices for the red, green and blue volumes.
+   * @param jr index of frequency for red.
+   * @param jg index of frequency for green.
+   * @param jb index of frequency for blue.
+   */
+  public void setRgbBands(int jr, int jg, int jb) {
+    int nf = _sf.getCount();
+    Check.argument(0<=jr && jr<nf,"0<=jr<nf");
+    Check.argument(0<=jg && jg<nf,"0<=jg<nf");
+    Check.argument(0<=jb && jb<nf,"0<=jb<nf");
+    _jrgb = new int[]{jr,jg,jb};
+  }
+
+  /**
+   * Sets the amplitude that corresponds to full intensity in RGB volumes.
+   * If positive, RGB amplitudes are divided by this clip and then clipped
+   * to the range [0,1]; otherwise, amplitudes are output unscaled.
+   * @param clip the clip amplitude; default is zero, for no scaling.
+   */
+  public void setRgbClip(float clip) {
+    _clip = clip;
+  }
+
+  /**
+   * Returns the number of volumes output for the specified attribute.
+   * @param a the attribute.
+   * @return the number of volumes.
+   */
+  public int getVolumeCount(Attribute a) {
+    if (a==Attribute.AMPLITUDE)
+      return _jfs.length;
+    else if (a==Attribute.RGB)
+      return 3;
+    else
+      return 1;
+  }
+
+  /**
+   * Decomposes an image in memory and writes an attribute to a file.
+   * @param fx input array[n3][n2][n1] for the image.
+   * @param a the attribute.
+   * @param fileName name of the output file.
+   */
+  public void apply(float[][][] fx, Attribute a, String fileName) {
+    int n3 = fx.length;
+    int n2 = fx[0].length;
+    int n1 = fx[0][0].length;
+    apply(null,fx,n1,n2,n3,a,fileName);
+  }
+
+  /**
+   * Decomposes an image in a file and writes an attribute to a file.
+   * The input image is read one slab at a time.
+   * @param fileIn name of the input file, with floats [n3][n2][n1].
+   * @param n1 number of samples per trace.
+   * @param n2 number of traces per inline.
+   * @param n3 number of inlines.
+   * @param a the attribute.
+   * @param fileOut name of the output file.
+   */
+  public void apply(
+    String fileIn, int n1, int n2, int n3, Attribute a, String fileOut)
+  {
+    try {
+      ArrayFile afi = new ArrayFile(fileIn,"r");
+      try {
+        apply(afi,null,n1,n2,n3,a,fileOut);
+      } finally {
+        afi.close();
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private MorletTransform _mt;
+  private Sampling _sf; // frequency sampling
+  private int _m3 = 8; // number of inlines per slab
+  private int[] _jfs; // frequency indices of output amplitudes
+  private int[] _jrgb; // frequency indices for red, green and blue
+  private float _clip; // amplitude for full RGB intensity
+
+  // Buffers owned by one thread and reused for all slabs it processes.
+  private static class SlabBuffers {
+    float[][][] fx; // input slab, if read from a file
+    float[][][][] gx; // output slabs, one per output volume
+    float[] yr,yi; // complex work arrays for one trace and frequency
+    float[] ya,yb; // amplitudes for one trace and two frequencies
+    float[] am,ar; // amplitudes at frequencies adjacent to the peak
+    int[] jp; // frequency indices of peak amplitudes
+    SlabBuffers(boolean input, int nv, int m3, int n2, int n1) {
+      if (input)
+        fx = new float[m3][n2][n1];
+      gx = new float[nv][m3][n2][n1];
+      yr = new float[n1];
+      yi = new float[n1];
+      ya = new float[n1];
+      yb = new float[n1];
+      am = new float[n1];
+      ar = new float[n1];
+      jp = new int[n1];
+    }
+  }
+
+  private void apply(
+    final ArrayFile afi, final float[][][] fx,
+    final int n1, final int n2, final int n3,
+    final Attribute a, String fileOut)
+  {
+    Check.argument(_mt.getTimeSampling().getCount()==n1,"nt == n1");
+    final int nv = getVolumeCount(a);
+    final int m3 = min(_m3,n3);
+    final int ns = (n3+m3-1)/m3;
+    try {
+      final ArrayFile afo = new ArrayFile(fileOut,"rw");
+      try {
+        final Parallel.Unsafe<SlabBuffers> sbu =
+          new Parallel.Unsafe<SlabBuffers>();
+        Parallel.loop(ns,new Parallel.LoopInt() {
+        public void compute(int is) {
+          SlabBuffers sb = sbu.get();
+          if (sb==null)
+            sbu.set(sb=new SlabBuffers(afi!=null,nv,m3,n2,n1));
+          int j3 = is*m3;
+          int l3 = min(m3,n3-j3);
+          float[][][] fs = sb.fx;
+          if (afi!=null) {
+            readSlab(afi,j3,l3,n1,n2,fs);
+          } else {
+            fs = new float[l3][][];
+            for (int k3=0; k3<l3; ++k3)
+              fs[k3] = fx[j3+k3];
+          }
+          for (int k3=0; k3<l3; ++k3)
+            for (int i2=0; i2<n2; ++i2)
+              decompose(a,fs[k3][i2],sb,k3,i2);
+          writeSlab(afo,j3,l3,n1,n2,n3,sb.gx);
+        }});
+      } finally {
+        afo.close();
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  private void decompose(
+    Attribute a, float[] x, SlabBuffers sb, int k3, int i2)
+  {
+    float[][][][] gx = sb.gx;
+    float[] ya = sb.ya;
+    if (a==Attribute.AMPLITUDE) {
+      for (int iv=0; iv<_jfs.length; ++iv)
+        amplitude(_jfs[iv],x,sb,gx[iv][k3][i2]);
+    } else if (a==Attribute.RGB) {
+      for (int iv=0; iv<3; ++iv) {
+        float[] g = gx[iv][k3][i2];
+        amplitude(_jrgb[iv],x,sb,g);
+        if (_clip>0.0f) {
+          float sc = 1.0f/_clip;
+          for (int i1=0; i1<g.length; ++i1)
+            g[i1] = min(g[i1]*sc,1.0f);
+        }
+      }
+    } else {
+      // Tracks the peak amplitude and its frequency index for each sample,
+      // along with amplitudes at the two neighboring frequencies, for a
+      // parabolic refinement of the peak frequency in one sweep.
+      int n1 = x.length;
+      int nf = _sf.getCount();
+      float[] ap = gx[0][k3][i2];
+      float[] am = sb.am, ar = sb.ar, yb = sb.yb;
+      int[] jp = sb.jp;
+      zero(ap);
+      for (int jf=0; jf<nf; ++jf) {
+        amplitude(jf,x,sb,ya);
+        for (int i1=0; i1<n1; ++i1) {
+          if (jf>0 && jp[i1]==jf-1)
+            ar[i1] = ya[i1];
+          if (jf==0 || ya[i1]>ap[i1]) {
+            am[i1] = (jf>0)?yb[i1]:0.0f;
+            ap[i1] = ya[i1];
+            jp[i1] = jf;
+          }
+        }
+        float[] yt = yb; yb = ya; ya = yt;
+      }
+      if (a==Attribute.PEAK_FREQUENCY) {
+        for (int i1=0; i1<n1; ++i1)
+          ap[i1] = peakFrequency(jp[i1],am[i1],ap[i1],ar[i1]);
+      }
+    }
+  }
+
+  // Returns the frequency of a peak refined with a parabola through
+  // amplitudes at the peak frequency index jf and its two neighbors.
+  private float peakFrequency(int jf, float am, float a0, float ar) {
+    int nf = _sf.getCount();
+    float df = 0.0f;
+    if (0<jf && jf<nf-1) {
+      float den = am-2.0f*a0+ar;
+      if (den<0.0f)
+        df = 0.5f*(am-ar)/den;
+    }
+    int kf = (df<0.0f)?jf-1:jf;
+    float wf = (df<0.0f)?1.0f+df:df;
+    if (kf>nf-2) {
+      kf = nf-2;
+      wf = 1.0f;
+    }
+    double fk = _sf.getValue(kf);
+    double fl = _sf.getValue(kf+1);
+    return (float)(fk+wf*(fl-fk));
+  }
+
+  private void amplitude(int jf, float[] x, SlabBuffers sb, float[] ya) {
+    float[] yr = sb.yr;
+    float[] yi = sb.yi;
+    _mt.apply(jf,x,yr,yi);
+    for (int i1=0; i1<ya.length; ++i1)
+      ya[i1] = sqrt(yr[i1]*yr[i1]+yi[i1]*yi[i1]);
+  }
+
+  private static void readSlab(
+    ArrayFile af, int j3, int l3, int n1, int n2, float[][][] fs)
+  {
+    try {
+      synchronized(af) {
+        af.seek(4L*n1*n2*j3);
+        for (int k3=0; k3<l3; ++k3)
+          af.readFloats(fs[k3]);
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  private static void writeSlab(
+    ArrayFile af, int j3, int l3, int n1, int n2, int n3, float[][][][] gs)
+  {
+    long nvol = 4L*n1*n2*n3;
+    try {
+      synchronized(af) {
+        for (int iv=0; iv<gs.length; ++iv) {
+          af.seek(iv*nvol+4L*n1*n2*j3);
+          for (int k3=0; k3<l3; ++k3)
+            af.writeFloats(gs[iv][k3]);
+        }
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+}
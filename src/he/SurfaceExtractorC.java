@@ -36,6 +36,14 @@ public class SurfaceExtractorC {
   public void setExternalIterations(int exniter){
     _exniter = exniter;
   }
+
+  // Sets parameters for incremental updates: the half-width of the window
+  // first updated around changed control points, and the largest change
+  // (in samples) allowed near the window edges before the window is grown.
+  public void setIncrementalWindow(int halfWidth, float maxEdgeChange){
+    _hwin = halfWidth;
+    _emax = maxEdgeChange;
+  }
   // find the peak or trough nearest to each control point
   public float[] refineConstraints(float[] k1, float[] k2, float[] k3, float[][][] u) {
     int np = k1.length;
@@ -149,6 +157,114 @@ public class SurfaceExtractorC {
     //checkConstraintForce(k2,k3,cf);
   }
 
+  // Incrementally updates a surface after the control points with
+  // indices ic have been added or moved. The surface is warm started 
+  // from its current values and updated only in a window around the 
+  // changed control points, with values on the window edges fixed. 
+  // If the surface changes near those edges by more than the allowed 
+  // amount, the update has not decayed within the window, so the window 
+  // is doubled in size and the update repeated, until it covers the 
+  // whole surface.
+  public void surfaceUpdateIncremental
+    (float[][][] ep, float[][][] p ,float[][][] q,
+     float[] k1, float[] k2, float[] k3, int[] ic, float[][] surf)
+  {
+    int n3 = p.length; 
+    int n2 = p[0].length; 
+    int n1 = p[0][0].length; 
+    int nc = ic.length;
+    if (nc==0) return;
+    int j2b = n2, j2e = -1;
+    int j3b = n3, j3e = -1;
+    for (int jc=0; jc<nc; ++jc) {
+      int c2 = (int)k2[ic[jc]];
+      int c3 = (int)k3[ic[jc]];
+      surf[c3][c2] = k1[ic[jc]];
+      j2b = min(j2b,c2); j2e = max(j2e,c2);
+      j3b = min(j3b,c3); j3e = max(j3e,c3);
+    }
+    boolean done = false;
+    for (int hw=_hwin; !done; hw*=2) {
+      int i2b = max(j2b-hw,0), i2e = min(j2e+hw,n2-1);
+      int i3b = max(j3b-hw,0), i3e = min(j3e+hw,n3-1);
+      int m2 = i2e-i2b+1;
+      int m3 = i3e-i3b+1;
+      float[][][] ws = copy(n1,m2,m3,0,i2b,i3b,ep);
+      float[][][] ps = copy(n1,m2,m3,0,i2b,i3b,p);
+      float[][][] qs = copy(n1,m2,m3,0,i2b,i3b,q);
+      float[][] sfs = copy(m2,m3,i2b,i3b,surf);
+      float[][] sf0 = copy(sfs);
+      float[][] kw = windowConstraints(k2,k3,i2b,i2e,i3b,i3e,n2,n3);
+      subsetUpdate(ws,ps,qs,kw[0],kw[1],sfs);
+      copy(m2,m3,0,0,sfs,i2b,i3b,surf);
+      done = (m2==n2 && m3==n3) ||
+        edgeChange(sf0,sfs,i2b,i2e,i3b,i3e,n2,n3,max(2,hw/4))<=_emax;
+    }
+  }
+
+  // Constraints for a window update: all control points in the window,
+  // and all window edge samples that are not on edges of the surface.
+  private static float[][] windowConstraints(
+    float[] k2, float[] k3, int i2b, int i2e, int i3b, int i3e, 
+    int n2, int n3)
+  {
+    int m2 = i2e-i2b+1;
+    int m3 = i3e-i3b+1;
+    boolean[][] fixed = new boolean[m3][m2];
+    for (int i3=0; i3<m3; ++i3) {
+      if (i2b>0) fixed[i3][0] = true;
+      if (i2e<n2-1) fixed[i3][m2-1] = true;
+    }
+    for (int i2=0; i2<m2; ++i2) {
+      if (i3b>0) fixed[0][i2] = true;
+      if (i3e<n3-1) fixed[m3-1][i2] = true;
+    }
+    int np = k2.length;
+    for (int ip=0; ip<np; ++ip) {
+      int i2 = (int)k2[ip]-i2b;
+      int i3 = (int)k3[ip]-i3b;
+      if (0<=i2 && i2<m2 && 0<=i3 && i3<m3)
+        fixed[i3][i2] = true;
+    }
+    int nk = 0;
+    for (int i3=0; i3<m3; ++i3)
+      for (int i2=0; i2<m2; ++i2)
+        if (fixed[i3][i2]) ++nk;
+    float[][] kw = new float[2][nk];
+    int k = 0;
+    for (int i3=0; i3<m3; ++i3) {
+      for (int i2=0; i2<m2; ++i2) {
+        if (fixed[i3][i2]) {
+          kw[0][k] = i2;
+          kw[1][k] = i3;
+          ++k;
+        }
+      }
+    }
+    return kw;
+  }
+
+  // Largest change of a window update within a band of width nb inside 
+  // those window edges that are not on edges of the surface.
+  private static float edgeChange(
+    float[][] f, float[][] g, int i2b, int i2e, int i3b, int i3e, 
+    int n2, int n3, int nb)
+  {
+    int m2 = i2e-i2b+1;
+    int m3 = i3e-i3b+1;
+    float emax = 0.0f;
+    for (int i3=0; i3<m3; ++i3) {
+      for (int i2=0; i2<m2; ++i2) {
+        boolean edge = 
+          (i2b>0 && i2<=nb) || (i2e<n2-1 && i2>=m2-1-nb) ||
+          (i3b>0 && i3<=nb) || (i3e<n3-1 && i3>=m3-1-nb);
+        if (edge) 
+          emax = max(emax,abs(g[i3][i2]-f[i3][i2]));
+      }
+    }
+    return emax;
+  }
+
   public void surfaceRefine(float[][] surf, float[][][] u) {
     int n3 = u.length;
     int n2 = u[0].length;
@@ -568,4 +684,6 @@ public class SurfaceExtractorC {
   private float _small = 0.01f; // stop CG iterations if residuals small
   private int _niter = 200; // maximum number of CG iterations
   private int _exniter = 10; // external iterations of surface updating
+  private int _hwin = 32; // initial half-width of incremental update window
+  private float _emax = 0.1f; // max change near edges of update window
 }
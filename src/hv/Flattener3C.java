@@ -12,6 +12,8 @@ import edu.mines.jtk.util.*;
 import edu.mines.jtk.interp.*;
 import static edu.mines.jtk.util.ArrayMath.*;
 
+import util.GridPyramid;
+
 
 /**
  * Flattens and unflattens locally planar features in a 3D image.
@@ -207,6 +209,23 @@ public class Flattener3C {
     _niter = niter;
   }
 
+  /**
+   * Sets the number of levels for coarse-to-fine computation of shifts.
+   * With more than one level, shifts are first computed on a grid
+   * coarsened by a factor of two, for coarsened slopes and weights and
+   * for control points moved to the nearest coarse samples. Points of one
+   * set that move to the same coarse sample are merged, and samples
+   * shared by points of different sets are not constrained on the coarse
+   * grid. Interpolated coarse shifts are adjusted at control points to
+   * satisfy their constraints exactly, and then used as the initial guess
+   * for the finer grid.
+   * @param nlevel number of levels, including the finest; default is 1.
+   */
+  public void setLevels(int nlevel) {
+    Check.argument(nlevel>=1,"nlevel>=1");
+    _nlevel = nlevel;
+  }
+
   /**
    * Gets mappings computed from specified slopes and planarities.
    * @param s1 sampling of 1st dimension.
@@ -237,18 +256,10 @@ public class Flattener3C {
     // Compute shifts r(x1,x2,x3), in samples.
     float[][][] b = new float[n3][n2][n1]; // right-hand side
     float[][][] r = new float[n3][n2][n1]; // shifts, in samples
-    initializeShifts(rd,k1,k2,k3,r); // initial shifts to satisfy constraints
-    VecArrayFloat3 vb = new VecArrayFloat3(b);
-    VecArrayFloat3 vr = new VecArrayFloat3(r);
     //setWeights(k1,k2,k3,wp);
     clip(0.0005f,1.0f,wp);
-    A3 a3 = new A3(_scale,_weight1,wp,p2,p3);
-    M3 m3 = new M3(_sigma1,_sigma2,_sigma3,wp,k1,k2,k3);
-    //testSpd("a2",n1,n2,a2);
-    //testSpd("m2",n1,n2,m2);
-    CgSolver cs = new CgSolver(_small,_niter);
-    makeRhs(wp,p2,p3,b);
-    cs.solve(a3,m3,vb,vr);
+    computeShifts(_nlevel,_sigma1,_sigma2,_sigma3,
+      p2,p3,wp,rd,k1,k2,k3,b,r);
     //checkShifts(k1a,k2a,k3a,r);
     cleanShifts(r);
     // Compute u1(x1,x2,x3).
@@ -412,6 +423,163 @@ public class Flattener3C {
   private float _sigma3 = 4.0f; // precon smoothing extent for 3rd dim
   private float _small = 0.01f; // stop CG iterations if residuals small
   private int _niter = 1000; // maximum number of CG iterations
+  private int _nlevel = 1; // number of levels for coarse-to-fine shifts
+
+  // Computes shifts r, in samples, for specified smoothings. For more than
+  // one level, shifts computed on a coarser grid are the initial guess;
+  // otherwise, the initial guess is that of initializeShifts. Either guess
+  // satisfies the constraints for control points, and the preconditioner
+  // ensures that all CG updates do the same.
+  private void computeShifts(
+    int nlevel, float sigma1, float sigma2, float sigma3,
+    float[][][] p2, float[][][] p3, float[][][] wp,
+    float[][] rd, float[][] k1, float[][] k2, float[][] k3,
+    float[][][] b, float[][][] r)
+  {
+    int n3 = r.length;
+    int n2 = r[0].length;
+    int n1 = r[0][0].length;
+    if (nlevel>1 && GridPyramid.canCoarsen(r)) {
+      int m3 = (n3+1)/2;
+      int m2 = (n2+1)/2;
+      int m1 = (n1+1)/2;
+      float[][][] kc = coarsenConstraints(m1,m2,rd,k1,k2,k3);
+      float[][] rdc = (kc!=null)?kc[0]:null;
+      float[][] k1c = (kc!=null)?kc[1]:null;
+      float[][] k2c = (kc!=null)?kc[2]:null;
+      float[][] k3c = (kc!=null)?kc[3]:null;
+      float[][][] rc = new float[m3][m2][m1];
+      computeShifts(nlevel-1,0.5f*sigma1,0.5f*sigma2,0.5f*sigma3,
+        GridPyramid.coarsen(p2),GridPyramid.coarsen(p3),
+        GridPyramid.coarsen(wp),rdc,k1c,k2c,k3c,
+        new float[m3][m2][m1],rc);
+      GridPyramid.refine(2.0f,rc,r);
+      constrainShifts(rd,k1,k2,k3,r);
+    } else {
+      initializeShifts(rd,k1,k2,k3,r); // initial shifts to satisfy constraints
+    }
+    VecArrayFloat3 vb = new VecArrayFloat3(b);
+    VecArrayFloat3 vr = new VecArrayFloat3(r);
+    A3 a3 = new A3(_scale,_weight1,wp,p2,p3);
+    M3 m3 = new M3(sigma1,sigma2,sigma3,wp,k1,k2,k3);
+    CgSolver cs = new CgSolver(_small,_niter);
+    makeRhs(wp,p2,p3,b);
+    cs.solve(a3,m3,vb,vr);
+  }
+
+  // Control points {rd,k1,k2,k3} for a grid coarsened by a factor of two,
+  // with m1 and m2 samples in its 1st and 2nd dimensions. Fine points
+  // of one set that map to the same coarse sample are merged into one
+  // point, with their average fractional index. Coarse samples to which
+  // points of more than one set map are dropped from all sets, because
+  // those sets may require different shifts there. Sets with fewer than
+  // two points remaining impose no constraints and are dropped. Returns
+  // null if no sets remain.
+  private static float[][][] coarsenConstraints(
+    int m1, int m2,
+    float[][] rd, float[][] k1, float[][] k2, float[][] k3)
+  {
+    if (k1==null || k2==null || k3==null)
+      return null;
+    int nc = k1.length;
+    HashMap<Long,Integer> owners = new HashMap<Long,Integer>();
+    for (int ic=0; ic<nc; ++ic) {
+      int nk = k1[ic].length;
+      for (int ik=0; ik<nk; ++ik) {
+        Long key = coarseKey(m1,m2,k1[ic][ik],k2[ic][ik],k3[ic][ik]);
+        Integer jc = owners.get(key);
+        if (jc==null)
+          owners.put(key,ic);
+        else if (jc!=ic)
+          owners.put(key,-1);
+      }
+    }
+    ArrayList<float[]> rdl = new ArrayList<float[]>();
+    ArrayList<float[]> k1l = new ArrayList<float[]>();
+    ArrayList<float[]> k2l = new ArrayList<float[]>();
+    ArrayList<float[]> k3l = new ArrayList<float[]>();
+    for (int ic=0; ic<nc; ++ic) {
+      int nk = k1[ic].length;
+      LinkedHashMap<Long,float[]> points = new LinkedHashMap<Long,float[]>();
+      for (int ik=0; ik<nk; ++ik) {
+        Long key = coarseKey(m1,m2,k1[ic][ik],k2[ic][ik],k3[ic][ik]);
+        if (owners.get(key)!=ic)
+          continue;
+        float[] p = points.get(key);
+        if (p==null) {
+          p = new float[]{0.0f,
+            round(k1[ic][ik])/2,round(k2[ic][ik])/2,round(k3[ic][ik])/2,0.0f};
+          points.put(key,p);
+        }
+        p[0] += 0.5f*(round(k1[ic][ik])+rd[ic][ik])-p[1];
+        p[4] += 1.0f;
+      }
+      int mk = points.size();
+      if (mk<2)
+        continue;
+      float[] rdc = new float[mk];
+      float[] k1c = new float[mk];
+      float[] k2c = new float[mk];
+      float[] k3c = new float[mk];
+      int jk = 0;
+      for (float[] p:points.values()) {
+        rdc[jk] = p[0]/p[4];
+        k1c[jk] = p[1];
+        k2c[jk] = p[2];
+        k3c[jk] = p[3];
+        ++jk;
+      }
+      rdl.add(rdc);
+      k1l.add(k1c);
+      k2l.add(k2c);
+      k3l.add(k3c);
+    }
+    if (rdl.isEmpty())
+      return null;
+    float[][] rdc = rdl.toArray(new float[0][]);
+    float[][] k1c = k1l.toArray(new float[0][]);
+    float[][] k2c = k2l.toArray(new float[0][]);
+    float[][] k3c = k3l.toArray(new float[0][]);
+    return new float[][][]{rdc,k1c,k2c,k3c};
+  }
+
+  private static Long coarseKey(
+    int m1, int m2, float k1, float k2, float k3)
+  {
+    long j1 = round(k1)/2;
+    long j2 = round(k2)/2;
+    long j3 = round(k3)/2;
+    return j1+m1*(j2+m2*j3);
+  }
+
+  // Adjusts shifts at control points so that, as for initializeShifts,
+  // shifts plus (fractional) sample indices are constant for each set of
+  // control points. That constant is the average for the set.
+  private static void constrainShifts(
+    float[][] rd, float[][] k1, float[][] k2, float[][] k3, float[][][] r)
+  {
+    if (k1!=null && k2!=null && k3!=null) {
+      int nc = k1.length;
+      for (int ic=0; ic<nc; ++ic) {
+        int nk = k1[ic].length;
+        float sum = 0.0f;
+        for (int ik=0; ik<nk; ++ik) {
+          int i1 = round(k1[ic][ik]);
+          int i2 = round(k2[ic][ik]);
+          int i3 = round(k3[ic][ik]);
+          sum += r[i3][i2][i1]+i1+rd[ic][ik];
+        }
+        float avg = sum/(float)nk;
+        for (int ik=0; ik<nk; ++ik) {
+          int i1 = round(k1[ic][ik]);
+          int i2 = round(k2[ic][ik]);
+          int i3 = round(k3[ic][ik]);
+          r[i3][i2][i1] = avg-i1-rd[ic][ik];
+        }
+      }
+    }
+  }
+
 
   // Conjugate-gradient operators.
   private static class A3 implements CgSolver.A {
@@ -8,6 +8,7 @@ available at http://www.eclipse.org/legal/cpl-v10.html
 package hv;
 import edu.mines.jtk.dsp.Sampling;
 import edu.mines.jtk.awt.ColorMap;
+import edu.mines.jtk.util.*;
 import static edu.mines.jtk.util.ArrayMath.*;
 
 /**
@@ -59,6 +60,52 @@ public class HorizonFromRgt {
     return new float[][]{xyz,rgb};
   }
 
+  /**
+   * Extracts multiple horizons from the relative geologic time volume.
+   * For each trace, all horizons are found in a single pass down the
+   * trace, because both the sorted RGT values and (mostly) the RGT
+   * values in the trace increase with x1. The depth of each horizon is
+   * the first crossing of its RGT value, linearly interpolated between
+   * samples. Where a trace does not reach an RGT value, the depth is 
+   * that of its first or last sample. Traces are processed in parallel.
+   * @param u1s array[nh] of RGT values, sorted in increasing order.
+   * @return array[nh][n3][n2] of horizon depths x1, in units of s1.
+   */
+  public float[][][] multipleHorizons(final float[] u1s) {
+    final int nh = u1s.length;
+    final int n3 = _u1.length;
+    final int n2 = _u1[0].length;
+    final int n1 = _u1[0][0].length;
+    for (int ih=1; ih<nh; ++ih)
+      Check.argument(u1s[ih-1]<=u1s[ih],"RGT values are sorted");
+    final float d1 = (float)_s1.getDelta();
+    final float f1 = (float)_s1.getFirst();
+    final float l1 = (float)_s1.getLast();
+    final float[][][] sfs = new float[nh][n3][n2];
+    Parallel.loop(n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        float[] u = _u1[i3][i2];
+        int ih = 0;
+        for (; ih<nh && u1s[ih]<=u[0]; ++ih)
+          sfs[ih][i3][i2] = f1;
+        for (int i1=1; i1<n1 && ih<nh; ++i1) {
+          float ua = u[i1-1];
+          float ub = u[i1  ];
+          for (; ih<nh && u1s[ih]<=ub; ++ih) {
+            float du = ub-ua;
+            float r = (du>0.0f)?(u1s[ih]-ua)/du:0.0f;
+            if (r<0.0f) r = 0.0f;
+            sfs[ih][i3][i2] = f1+(i1-1+r)*d1;
+          }
+        }
+        for (; ih<nh; ++ih)
+          sfs[ih][i3][i2] = l1;
+      }
+    }});
+    return sfs;
+  }
+
   public float[] trianglesForSurface(float[][] surf, float top, float down) {
     int n1 = surf[0].length;
     int n2 = surf.length;
@@ -10,6 +10,8 @@ import edu.mines.jtk.dsp.*;
 import edu.mines.jtk.util.*;
 import static edu.mines.jtk.util.ArrayMath.*;
 
+import util.GridPyramid;
+
 /**
  * Weighted phase unwrapping. 
  * <em>EXPERIMENTAL</em>
@@ -239,21 +241,72 @@ public class PhaseUnwrapper{
   public float[][][] phaseUnwrapping(
     float[][][] wp,
     float[][][] u1, float[][][] u2, float[][][] u3)
+  {
+    return phaseUnwrapping(_nlevel,_sigma1,_sigma2,_sigma3,wp,u1,u2,u3);
+  }
+
+  /**
+   * Sets the number of levels for coarse-to-fine phase unwrapping.
+   * With more than one level, phase is first unwrapped on a grid
+   * coarsened by a factor of two, for which phase gradients, in radians
+   * per coarse sample, are doubled. Unwrapped phase is not scaled when
+   * interpolated back to the finer grid, where it is the initial guess
+   * for CG iterations. Those iterations stop when residuals are as small
+   * as for a solve without that guess, typically after few iterations
+   * on the finest grid.
+   * @param nlevel number of levels, including the finest; default is 1.
+   */
+  public void setLevels(int nlevel) {
+    Check.argument(nlevel>=1,"nlevel>=1");
+    _nlevel = nlevel;
+  }
+
+  private float[][][] phaseUnwrapping(
+    int nlevel, float sigma1, float sigma2, float sigma3,
+    float[][][] wp,
+    float[][][] u1, float[][][] u2, float[][][] u3)
   {
     int n3 = u1.length;
     int n2 = u1[0].length;
     int n1 = u1[0][0].length;
+    float[][][] f0 = null; // initial guess from coarser grid, if any
+    if (nlevel>1 && GridPyramid.canCoarsen(u1)) {
+      float[][][] wc = (wp!=null)?GridPyramid.coarsen(wp):null;
+      float[][][] fc = phaseUnwrapping(nlevel-1,
+        0.5f*sigma1,0.5f*sigma2,0.5f*sigma3,wc,
+        GridPyramid.coarsen(2.0f,u1),GridPyramid.coarsen(2.0f,u2),
+        GridPyramid.coarsen(2.0f,u3));
+      f0 = new float[n3][n2][n1];
+      GridPyramid.refine(1.0f,fc,f0);
+    }
     float[][][] b = new float[n3][n2][n1]; // right-hand side
     float[][][] f = new float[n3][n2][n1]; // fault isosurface volume, in samples
     VecArrayFloat3 vb = new VecArrayFloat3(b);
     VecArrayFloat3 vf = new VecArrayFloat3(f);
-    Smoother3 smoother3 = new Smoother3(_sigma1,_sigma2,_sigma3);
+    Smoother3 smoother3 = new Smoother3(sigma1,sigma2,sigma3);
     A3 a3 = new A3(_weight1, wp, smoother3);
-    CgSolver cs = new CgSolver(_small,_niter);
     makeRhs(wp,u1,u2,u3,b);
-    smoother3.applyTranspose(b);
+    float small = _small;
+    if (f0!=null) { // solve for the correction to the initial guess
+      float[][][] r = new float[n3][n2][n1];
+      applyLhs(_weight1,wp,f0,r);
+      sub(b,r,r);
+      smoother3.applyTranspose(b);
+      smoother3.applyTranspose(r);
+      // Stop when residuals are as small as for a solve without the
+      // initial guess, not when those for the correction are small.
+      float bnorm = GridPyramid.norm(b);
+      float rnorm = GridPyramid.norm(r);
+      small = (rnorm>bnorm*_small)?_small*bnorm/rnorm:1.0f;
+      copy(r,b);
+    } else {
+      smoother3.applyTranspose(b);
+    }
+    CgSolver cs = new CgSolver(small,_niter);
     cs.solve(a3,vb,vf);
     smoother3.apply(f);
+    if (f0!=null)
+      add(f0,f,f);
     return f;
   }
 
@@ -571,5 +624,6 @@ public class PhaseUnwrapper{
   private float _small = 0.01f; // stop CG iterations if residuals small
   private float _weight1 = 0.01f;
   private int _niter = 100; // maximum number of CG iterations
+  private int _nlevel = 1; // number of levels for coarse-to-fine solves
 
 }
@@ -10,6 +10,8 @@ import edu.mines.jtk.dsp.*;
 import edu.mines.jtk.util.*;
 import static edu.mines.jtk.util.ArrayMath.*;
 
+import util.ShiftWarper;
+
 /**
  * Dynamic warping of sequences and images.
  * <p>
@@ -100,7 +102,7 @@ public class DynamicWarping {
     _lmin = shiftMin;
     _lmax = shiftMax;
     _nl = 1+_lmax-_lmin;
-    _si = new SincInterpolator();
+    _sw = new ShiftWarper();
     _extrap = ErrorExtrapolation.NEAREST;
   }
 
@@ -162,6 +164,15 @@ public class DynamicWarping {
     _extrap = ee;
   }
 
+  /**
+   * Sets the method used to interpolate images warped by applying
+   * non-integer shifts. The default method is 8-point sinc interpolation.
+   * @param method the interpolation method.
+   */
+  public void setInterpolation(ShiftWarper.Method method) {
+    _sw = new ShiftWarper(method);
+  }
+
   /**
    * Sets the exponent used to compute alignment errors |f-g|^e.
    * The default exponent is 2.
@@ -257,6 +268,33 @@ public class DynamicWarping {
     _owf3 = f3;
   }
 
+  /**
+   * Sets the number of levels and the lag radius for multiresolution warping.
+   * With more than one level, shifts are first found for sequences or
+   * images decimated by a factor of two in the 1st dimension per level,
+   * for the complete range of lags scaled accordingly. At each finer
+   * level, alignment errors are then computed, smoothed and accumulated
+   * only for lags within a band of the specified radius centered on
+   * shifts interpolated from the next coarser level. The same bounds on
+   * strains are used for all levels.
+   * <p>
+   * Multiresolution warping reduces both time and memory required from
+   * O(n1*nl) to about O(n1*(1+2*radius)) per trace, which is important
+   * when the number of lags nl is large. Only 1D and 2D warping support
+   * this mode; 3D warping, which uses overlapping windows, does not.
+   * <p>
+   * The default number of levels is one, for full-resolution warping
+   * of all lags.
+   * @param nlevel number of levels; must be positive.
+   * @param radius radius of the band of lags searched at finer levels.
+   */
+  public void setMultiresolution(int nlevel, int radius) {
+    Check.argument(nlevel>0,"nlevel>0");
+    Check.argument(radius>0,"radius>0");
+    _nlevel = nlevel;
+    _lradius = radius;
+  }
+
   /**
    * Computes and returns shifts for specified sequences.
    * @param f array for the sequence f.
@@ -328,6 +366,10 @@ public class DynamicWarping {
    * @param u output array of shifts u.
    */
   public void findShifts(float[] f, float[] g, float[] u) {
+    if (_nlevel>1 && f.length>3) {
+      findShiftsMultires(f,g,u);
+      return;
+    }
     float[][] e = computeErrors(f,g);
     for (int is=0; is<_esmooth; ++is)
       smoothErrors(e,e);
@@ -343,6 +385,10 @@ public class DynamicWarping {
    * @param u output array of shifts u.
    */
   public void findShifts(float[][] f, float[][] g, float[][] u) {
+    if (_nlevel>1 && f[0].length>3) {
+      findShiftsMultires(f,g,u);
+      return;
+    }
     final float[][][] e = computeErrors(f,g);
     final int nl = e[0][0].length;
     final int n1 = e[0].length;
@@ -486,10 +532,7 @@ public class DynamicWarping {
    * @param h output array for the warped sequence.
    */
   public void applyShifts(float[] u, float[] g, float[] h) {
-    int n1 = u.length;
-    for (int i1=0; i1<n1; ++i1) {
-      h[i1] = _si.interpolate(n1,1.0,0.0,g,i1+u[i1]);
-    }
+    _sw.apply(u,g,h);
   }
 
   /**
@@ -499,17 +542,7 @@ public class DynamicWarping {
    * @param h output array for the warped image.
    */
   public void applyShifts(float[][] u, float[][] g, float[][] h) {
-    final int n1 = u[0].length;
-    final int n2 = u.length;
-    final float[][] uf = u;
-    final float[][] gf = g;
-    final float[][] hf = h;
-    Parallel.loop(n2,new Parallel.LoopInt() {
-    public void compute(int i2) {
-      for (int i1=0; i1<n1; ++i1) {
-        hf[i2][i1] = _si.interpolate(n1,1.0,0.0,gf[i2],i1+uf[i2][i1]);
-      }
-    }});
+    _sw.apply(u,g,h);
   }
 
   /**
@@ -519,14 +552,32 @@ public class DynamicWarping {
    * @param h output array for the warped image.
    */
   public void applyShifts(float[][][] u, float[][][] g, float[][][] h) {
-    int n3 = u.length;
-    final float[][][] uf = u;
-    final float[][][] gf = g;
-    final float[][][] hf = h;
-    Parallel.loop(n3,new Parallel.LoopInt() {
-    public void compute(int i3) {
-      applyShifts(uf[i3],gf[i3],hf[i3]);
-    }});
+    _sw.apply(u,g,h);
+  }
+
+  /**
+   * Returns multiple images warped by applying the same shifts.
+   * @param u array of shifts.
+   * @param g array {g1,g2,...} of images to be warped.
+   * @return array of warped images.
+   */
+  public float[][][][] applyShifts(float[][][] u, float[][][][] g) {
+    float[][][][] h = new float[g.length][][][];
+    for (int ig=0; ig<g.length; ++ig)
+      h[ig] = like(g[ig]);
+    applyShifts(u,g,h);
+    return h;
+  }
+
+  /**
+   * Computes multiple images warped by applying the same shifts.
+   * Interpolation stencils are computed once and used for all images.
+   * @param u input array of shifts.
+   * @param g input array {g1,g2,...} of images to be warped.
+   * @param h output array {h1,h2,...} of warped images.
+   */
+  public void applyShifts(float[][][] u, float[][][][] g, float[][][][] h) {
+    _sw.apply(u,g,h);
   }
 
   ///////////////////////////////////////////////////////////////////////////
@@ -1123,11 +1174,13 @@ public class DynamicWarping {
   private RecursiveExponentialFilter _ref1; // for smoothing shifts
   private RecursiveExponentialFilter _ref2; // for smoothing shifts
   private RecursiveExponentialFilter _ref3; // for smoothing shifts
-  private SincInterpolator _si; // for warping with non-integer shifts
+  private ShiftWarper _sw; // for warping with non-integer shifts
   private int _owl2 = 50; // window size in 2nd dimension for 3D images
   private int _owl3 = 50; // window size in 3rd dimension for 3D images
   private double _owf2 = 0.5; // fraction of window overlap in 2nd dimension
   private double _owf3 = 0.5; // fraction of window overlap in 3rd dimension
+  private int _nlevel = 1; // number of levels for multiresolution warping
+  private int _lradius = 4; // radius of band of lags at finer levels
 
   private float error(float f, float g) {
     return pow(abs(f-g),_epow);
@@ -1457,6 +1510,358 @@ public class DynamicWarping {
     return new float[a.length][a[0].length][a[0][0].length];
   }
 
+  ///////////////////////////////////////////////////////////////////////////
+  // for multiresolution warping
+
+  // Errors for lags outside of bands are infinite.
+  private static final float EINF = Float.POSITIVE_INFINITY;
+
+  /**
+   * Returns a warping for sequences decimated by a factor of two.
+   * The coarse warping has one less level, the same bounds on strains,
+   * and no smoothing of shifts.
+   */
+  private DynamicWarping coarseWarping() {
+    int lmin = (int)floor(0.5*_lmin);
+    int lmax = (int)ceil(0.5*_lmax);
+    if (lmax-lmin<2) lmax = lmin+2;
+    DynamicWarping dw = new DynamicWarping(lmin,lmax);
+    dw._extrap = _extrap;
+    dw._epow = _epow;
+    dw._esmooth = _esmooth;
+    dw._bstrain1 = _bstrain1;
+    dw._bstrain2 = _bstrain2;
+    dw._bstrain3 = _bstrain3;
+    dw._nlevel = _nlevel-1;
+    dw._lradius = _lradius;
+    return dw;
+  }
+
+  private static float[] decimate(float[] f) {
+    int n1 = f.length;
+    int m1 = (n1+1)/2;
+    float[] fs = new float[n1];
+    new RecursiveGaussianFilter(1.0).apply0(f,fs);
+    float[] fc = new float[m1];
+    for (int i1=0; i1<m1; ++i1)
+      fc[i1] = fs[2*i1];
+    return fc;
+  }
+
+  private static float[][] decimate(float[][] f) {
+    int n2 = f.length;
+    float[][] fc = new float[n2][];
+    for (int i2=0; i2<n2; ++i2)
+      fc[i2] = decimate(f[i2]);
+    return fc;
+  }
+
+  /**
+   * Computes the first lag of the band of lags for each sample, centered
+   * on shifts linearly interpolated from shifts uc on the coarser grid.
+   * Because coarse shifts satisfy the bound on strain, the first lags of
+   * bands differ by no more than one for adjacent samples.
+   */
+  private void bandLags(int nb, float[] uc, int[] lo) {
+    int n1 = lo.length;
+    int m1 = uc.length;
+    int lhi = _lmax-nb+1;
+    for (int i1=0; i1<n1; ++i1) {
+      int j1 = min(i1/2,m1-1);
+      int k1 = min(j1+1,m1-1);
+      float w1 = (i1%2==0)?0.0f:0.5f;
+      float ui = 2.0f*((1.0f-w1)*uc[j1]+w1*uc[k1]);
+      int lc = (int)floor(ui+0.5f);
+      lo[i1] = max(_lmin,min(lhi,lc-_lradius));
+    }
+  }
+
+  private int bandCount() {
+    return min(_nl,1+2*_lradius);
+  }
+
+  private void findShiftsMultires(float[] f, float[] g, float[] u) {
+    int n1 = f.length;
+    int nb = bandCount();
+    DynamicWarping dw = coarseWarping();
+    float[] uc = dw.findShifts(decimate(f),decimate(g));
+    int[] lo = new int[n1];
+    bandLags(nb,uc,lo);
+    float[][] e = new float[n1][nb];
+    computeErrorsBand(f,g,lo,e);
+    normalizeErrors(e);
+    for (int is=0; is<_esmooth; ++is) {
+      smoothErrorsBand(_bstrain1,lo,e,e);
+      normalizeErrors(e);
+    }
+    float[][] d = new float[n1][nb];
+    accumulateBand( 1,_bstrain1,lo,e,d);
+    backtrackBand(-1,_bstrain1,lo,d,e,u);
+    smoothShifts(u,u);
+  }
+
+  private void findShiftsMultires(float[][] f, float[][] g, float[][] u) {
+    final int n2 = f.length;
+    final int n1 = f[0].length;
+    final int nb = bandCount();
+    DynamicWarping dw = coarseWarping();
+    final float[][] uc = dw.findShifts(decimate(f),decimate(g));
+    final int[][] lo = new int[n2][n1];
+    final float[][][] e = new float[n2][n1][nb];
+    final float[][] ff = f, gf = g, uf = u;
+    Parallel.loop(n2,new Parallel.LoopInt() {
+    public void compute(int i2) {
+      bandLags(nb,uc[i2],lo[i2]);
+      computeErrorsBand(ff[i2],gf[i2],lo[i2],e[i2]);
+    }});
+    normalizeErrors(e);
+    for (int is=0; is<_esmooth; ++is) {
+      smoothErrorsBand1(_bstrain1,lo,e,e);
+      normalizeErrors(e);
+      smoothErrorsBand2(_bstrain2,lo,e,e);
+      normalizeErrors(e);
+    }
+    final Parallel.Unsafe<float[][]> du = new Parallel.Unsafe<float[][]>();
+    Parallel.loop(n2,new Parallel.LoopInt() {
+    public void compute(int i2) {
+      float[][] d = du.get();
+      if (d==null) du.set(d=new float[n1][nb]);
+      accumulateBand( 1,_bstrain1,lo[i2],e[i2],d);
+      backtrackBand(-1,_bstrain1,lo[i2],d,e[i2],uf[i2]);
+    }});
+    smoothShifts(u,u);
+  }
+
+  /**
+   * Computes alignment errors, not normalized, for lags within bands.
+   * Errors for lags l that put sample indices i1+l out of bounds are
+   * extrapolated as for full-resolution warping, except that the
+   * average method is replaced by the nearest method.
+   * @param f input array[n1] for sequence f.
+   * @param g input array[n1] for sequence g.
+   * @param lo input array[n1] of first lags of bands.
+   * @param e output array[n1][nb] of alignment errors.
+   */
+  private void computeErrorsBand(float[] f, float[] g, int[] lo, float[][] e) {
+    int n1 = f.length;
+    int nb = e[0].length;
+    int n1m = n1-1;
+    boolean reflect = _extrap==ErrorExtrapolation.REFLECT;
+    float emax = 0.0f;
+    for (int i1=0; i1<n1; ++i1) {
+      for (int ib=0,j1=i1+lo[i1]; ib<nb; ++ib,++j1) {
+        if (0<=j1 && j1<n1) {
+          float ei = error(f[i1],g[j1]);
+          e[i1][ib] = ei;
+          if (ei>emax) emax = ei;
+        } else {
+          e[i1][ib] = -1.0f;
+        }
+      }
+    }
+    for (int i1=0; i1<n1; ++i1) {
+      for (int ib=0; ib<nb; ++ib) {
+        if (e[i1][ib]<0.0f) {
+          int l = lo[i1]+ib;
+          int k1 = (i1+l<0)?-l:n1m-l;
+          if (reflect)
+            k1 += k1-i1;
+          e[i1][ib] = (0<=k1 && k1<n1)?error(f[k1],g[k1+l]):emax;
+        }
+      }
+    }
+  }
+
+  private static float value(float[][] a, int[] lo, int i, int l) {
+    int k = l-lo[i];
+    return (0<=k && k<a[i].length)?a[i][k]:EINF;
+  }
+
+  /**
+   * Non-linear accumulation of alignment errors within bands of lags.
+   * Lags outside a band have infinite errors. If no lag in a band is
+   * reachable from the previous band, accumulation restarts from the
+   * minimum of previously accumulated errors.
+   * @param dir accumulation direction, positive or negative.
+   * @param b sample offset used to constrain changes in lag.
+   * @param lo array[ni] of first lags of bands.
+   * @param e input array[ni][nb] of alignment errors.
+   * @param d output array[ni][nb] of accumulated errors.
+   */
+  private void accumulateBand(
+    int dir, int b, int[] lo, float[][] e, float[][] d)
+  {
+    int nb = e[0].length;
+    int ni = e.length;
+    int nim1 = ni-1;
+    int ib = (dir>0)?0:nim1;
+    int ie = (dir>0)?ni:-1;
+    int is = (dir>0)?1:-1;
+    for (int kl=0; kl<nb; ++kl)
+      d[ib][kl] = e[ib][kl];
+    for (int ii=ib+is; ii!=ie; ii+=is) {
+      int ji = max(0,min(nim1,ii-is));
+      int jb = max(0,min(nim1,ii-is*b));
+      boolean reached = false;
+      for (int kl=0; kl<nb; ++kl) {
+        int l = lo[ii]+kl;
+        int lm = max(_lmin,l-1);
+        int lp = min(_lmax,l+1);
+        float dm = value(d,lo,jb,lm);
+        float di = value(d,lo,ji,l );
+        float dp = value(d,lo,jb,lp);
+        for (int kb=ji; kb!=jb; kb-=is) {
+          dm += value(e,lo,kb,lm);
+          dp += value(e,lo,kb,lp);
+        }
+        d[ii][kl] = min3(dm,di,dp)+e[ii][kl];
+        if (d[ii][kl]<EINF) reached = true;
+      }
+      if (!reached) {
+        float dmin = min(d[ji]);
+        for (int kl=0; kl<nb; ++kl)
+          d[ii][kl] = dmin+e[ii][kl];
+      }
+    }
+  }
+
+  /**
+   * Finds shifts by backtracking in accumulated errors within bands.
+   * @param dir backtrack direction, positive or negative.
+   * @param b sample offset used to constrain changes in lag.
+   * @param lo array[ni] of first lags of bands.
+   * @param d input array[ni][nb] of accumulated errors.
+   * @param e input array[ni][nb] of alignment errors.
+   * @param u output array[ni] of computed shifts.
+   */
+  private void backtrackBand(
+    int dir, int b, int[] lo, float[][] d, float[][] e, float[] u)
+  {
+    float ob = 1.0f/b;
+    int nb = d[0].length;
+    int ni = d.length;
+    int nim1 = ni-1;
+    int ib = (dir>0)?0:nim1;
+    int ie = (dir>0)?nim1:0;
+    int is = (dir>0)?1:-1;
+    int ii = ib;
+    int kl = 0;
+    float dl = d[ii][0];
+    for (int jl=1; jl<nb; ++jl) {
+      if (d[ii][jl]<dl) {
+        dl = d[ii][jl];
+        kl = jl;
+      }
+    }
+    int l = lo[ii]+kl;
+    u[ii] = l;
+    while (ii!=ie) {
+      int ji = max(0,min(nim1,ii+is));
+      int jb = max(0,min(nim1,ii+is*b));
+      int lm = max(_lmin,l-1);
+      int lp = min(_lmax,l+1);
+      float dm = value(d,lo,jb,lm);
+      float di = value(d,lo,ji,l );
+      float dp = value(d,lo,jb,lp);
+      for (int kb=ji; kb!=jb; kb+=is) {
+        dm += value(e,lo,kb,lm);
+        dp += value(e,lo,kb,lp);
+      }
+      dl = min3(dm,di,dp);
+      if (dl==EINF) {
+        // No lag is reachable, as when accumulation restarted, so
+        // continue from the best lag in the band for the next sample.
+        float dj = d[ji][0];
+        int kj = 0;
+        for (int jl=1; jl<nb; ++jl) {
+          if (d[ji][jl]<dj) {
+            dj = d[ji][jl];
+            kj = jl;
+          }
+        }
+        ii += is;
+        l = lo[ii]+kj;
+        u[ii] = l;
+        continue;
+      }
+      int lb = l;
+      if (dl!=di) {
+        if (dl==dm) {
+          l = lm;
+        } else {
+          l = lp;
+        }
+      }
+      ii += is;
+      u[ii] = l;
+      if (l!=lb) {
+        float du = (u[ii]-u[ii-is])*ob;
+        u[ii] = u[ii-is]+du;
+        for (int kb=ji; kb!=jb; kb+=is) {
+          ii += is;
+          u[ii] = u[ii-is]+du;
+        }
+      }
+    }
+  }
+
+  /**
+   * Smooths alignment errors within bands of lags along one dimension.
+   * Does not normalize errors after smoothing. Errors for lags that
+   * cannot be reached within bands are set to the maximum finite error.
+   */
+  private void smoothErrorsBand(int b, int[] lo, float[][] e, float[][] es) {
+    int nb = e[0].length;
+    int ni = e.length;
+    float[][] ef = new float[ni][nb];
+    float[][] er = new float[ni][nb];
+    accumulateBand( 1,b,lo,e,ef);
+    accumulateBand(-1,b,lo,e,er);
+    float emax = 0.0f;
+    for (int ii=0; ii<ni; ++ii) {
+      for (int kl=0; kl<nb; ++kl) {
+        float esi = ef[ii][kl]+er[ii][kl]-e[ii][kl];
+        es[ii][kl] = esi;
+        if (esi<EINF && esi>emax) emax = esi;
+      }
+    }
+    for (int ii=0; ii<ni; ++ii) {
+      for (int kl=0; kl<nb; ++kl) {
+        if (es[ii][kl]==EINF)
+          es[ii][kl] = emax;
+      }
+    }
+  }
+
+  private void smoothErrorsBand1(
+    final int b, final int[][] lo, final float[][][] e, final float[][][] es)
+  {
+    int n2 = e.length;
+    Parallel.loop(n2,new Parallel.LoopInt() {
+    public void compute(int i2) {
+      smoothErrorsBand(b,lo[i2],e[i2],es[i2]);
+    }});
+  }
+
+  private void smoothErrorsBand2(
+    final int b, final int[][] lo, final float[][][] e, final float[][][] es)
+  {
+    final int n2 = e.length;
+    final int n1 = e[0].length;
+    Parallel.loop(n1,new Parallel.LoopInt() {
+    public void compute(int i1) {
+      int[] lo1 = new int[n2];
+      float[][] e1 = new float[n2][];
+      float[][] es1 = new float[n2][];
+      for (int i2=0; i2<n2; ++i2) {
+        lo1[i2] = lo[i2][i1];
+        e1[i2] = e[i2][i1];
+        es1[i2] = es[i2][i1];
+      }
+      smoothErrorsBand(b,lo1,e1,es1);
+    }});
+  }
+
   ///////////////////////////////////////////////////////////////////////////
   // for 3D image warping
 
@@ -1520,26 +1925,15 @@ public class DynamicWarping {
     }});
   }
   private void smoothErrors(float[][][][] e) {
-    final int n2 = e[0].length;
-    final int n3 = e.length;
-    final float[][][][] ef = e;
-    Parallel.loop(n3,new Parallel.LoopInt() {
-    public void compute(int i3) {
-      smoothErrors1(_bstrain1,ef[i3],ef[i3]);
-    }});
+    int n3 = e.length;
+    WavefrontAccumulator wa = new WavefrontAccumulator();
+    for (int i3=0; i3<n3; ++i3)
+      wa.smooth1(_bstrain1,e[i3],e[i3]);
     normalizeErrors(e);
-    Parallel.loop(n3,new Parallel.LoopInt() {
-    public void compute(int i3) {
-      smoothErrors2(_bstrain2,ef[i3],ef[i3]);
-    }});
+    for (int i3=0; i3<n3; ++i3)
+      wa.smooth2(_bstrain2,e[i3],e[i3]);
     normalizeErrors(e);
-    Parallel.loop(n2,new Parallel.LoopInt() {
-    public void compute(int i2) {
-      float[][][] ei2 = new float[n3][][];
-      for (int i3=0; i3<n3; ++i3)
-        ei2[i3] = ef[i3][i2];
-      smoothErrors2(_bstrain3,ei2,ei2);
-    }});
+    wa.smooth3(_bstrain3,e,e);
     normalizeErrors(e);
   }
   private void computeShifts(float[][][][] e, float[][][] u) {
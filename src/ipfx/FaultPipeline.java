@@ -0,0 +1,878 @@
+/****************************************************************************
+Copyright (c) 2016, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package ipfx;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.util.*;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+import figi.FaultSlipConstraints;
+import flc.Flattener3;
+import uff.UnfaultS;
+import util.ShiftWarper;
+
+/**
+ * A pipeline of fault interpretation stages with cached outputs.
+ * <p>
+ * Stages form a directed acyclic graph, in which each stage computes one
+ * output from the outputs of its input stages. Typical stages are those of
+ * the workflow slopes, scan, thin, skin, reskin, smooth, slip, unfault and
+ * flatten, as implemented by the nested classes of this class with default
+ * parameters like those used in ipfx/demo.py.
+ * <p>
+ * Each output is cached with a key that is a hash of the stage class, the
+ * stage parameters, and the keys of its input stages. Keys of source images
+ * are hashes of their contents. Therefore, after a parameter of one stage
+ * is changed, only that stage and the stages downstream are recomputed.
+ * <p>
+ * Image outputs are kept in memory, up to a specified limit, and the least
+ * recently used images are spilled to files in the cache directory.
+ * Because keys depend only on contents and parameters, files in the cache
+ * directory may be reused by later pipelines. Fault skins are written to
+ * files when computed and read from files when requested, so that each
+ * stage gets its own copy of skins that it may modify. Cached files that
+ * are incomplete, such as those left by an interrupted pipeline, are
+ * ignored and their outputs are computed again.
+ * <p>
+ * Stages must not modify input images, and source images must not be
+ * modified after their stages are constructed.
+ *
+ * @author Xinming Wu, Colorado School of Mines
+ * @version 2016.12.12
+ */
+public class FaultPipeline {
+
+  /**
+   * A stage in a pipeline. Outputs are arrays of floats, arrays of arrays
+   * of floats, or arrays of fault skins.
+   */
+  public static abstract class Stage {
+
+    /**
+     * Constructs a stage with specified input stages.
+     * @param inputs the input stages.
+     */
+    protected Stage(Stage... inputs) {
+      _inputs = inputs;
+    }
+
+    /**
+     * Gets the input stages of this stage.
+     * @return array of input stages; by reference, not by copy.
+     */
+    public Stage[] getInputs() {
+      return _inputs;
+    }
+
+    /**
+     * Returns a string with all parameters that affect the output.
+     * @return the parameter string.
+     */
+    protected abstract String getParameters();
+
+    /**
+     * Computes the output of this stage.
+     * @param inputs array of outputs of the input stages.
+     * @return the output.
+     */
+    protected abstract Object compute(Object[] inputs);
+
+    private Stage[] _inputs;
+  }
+
+  /**
+   * A source image.
+   */
+  public static class Source extends Stage {
+    public Source(float[][][] f) {
+      _f = f;
+    }
+    protected String getParameters() {
+      if (_hash==null)
+        _hash = hash(_f);
+      return _hash;
+    }
+    protected Object compute(Object[] inputs) {
+      return _f;
+    }
+    private float[][][] _f;
+    private String _hash;
+  }
+
+  /**
+   * Slopes and planarities {p2,p3,ep} of an image.
+   */
+  public static class Slopes extends Stage {
+    public Slopes(Stage g) {
+      super(g);
+    }
+    public void setSmoothings(double sigma1, double sigma2, double sigma3) {
+      _sigma1 = sigma1;
+      _sigma2 = sigma2;
+      _sigma3 = sigma3;
+    }
+    public void setSlopeMax(double pmax) {
+      _pmax = pmax;
+    }
+    protected String getParameters() {
+      return _sigma1+","+_sigma2+","+_sigma3+","+_pmax;
+    }
+    protected Object compute(Object[] inputs) {
+      float[][][] g = image(inputs[0]);
+      return FaultScanner.slopes(_sigma1,_sigma2,_sigma3,_pmax,g);
+    }
+    private double _sigma1 = 16.0;
+    private double _sigma2 = 1.0;
+    private double _sigma3 = 1.0;
+    private double _pmax = 5.0;
+  }
+
+  /**
+   * Fault likelihoods, strikes and dips {fl,fp,ft} scanned from an image.
+   */
+  public static class Scan extends Stage {
+    public Scan(Stage g, Stage slopes) {
+      super(g,slopes);
+    }
+    public void setSmoothings(double sigmaPhi, double sigmaTheta) {
+      _sigmaPhi = sigmaPhi;
+      _sigmaTheta = sigmaTheta;
+    }
+    public void setStrikes(double minPhi, double maxPhi) {
+      _minPhi = minPhi;
+      _maxPhi = maxPhi;
+    }
+    public void setDips(double minTheta, double maxTheta) {
+      _minTheta = minTheta;
+      _maxTheta = maxTheta;
+    }
+    public void setTaper(int m1, int m2, int m3) {
+      _m1 = m1;
+      _m2 = m2;
+      _m3 = m3;
+    }
+    protected String getParameters() {
+      return _sigmaPhi+","+_sigmaTheta+","+_minPhi+","+_maxPhi+","+
+        _minTheta+","+_maxTheta+","+_m1+","+_m2+","+_m3;
+    }
+    protected Object compute(Object[] inputs) {
+      float[][][] g = image(inputs[0]);
+      float[][][][] pe = (float[][][][])inputs[1];
+      g = FaultScanner.taper(_m1,_m2,_m3,g);
+      FaultScanner fs = new FaultScanner(_sigmaPhi,_sigmaTheta);
+      return fs.scan(_minPhi,_maxPhi,_minTheta,_maxTheta,pe[0],pe[1],g);
+    }
+    private double _sigmaPhi = 12.0;
+    private double _sigmaTheta = 20.0;
+    private double _minPhi = 0.0;
+    private double _maxPhi = 360.0;
+    private double _minTheta = 65.0;
+    private double _maxTheta = 85.0;
+    private int _m1 = 10, _m2 = 0, _m3 = 0;
+  }
+
+  /**
+   * Thinned fault likelihoods, strikes and dips {flt,fpt,ftt}.
+   */
+  public static class Thin extends Stage {
+    public Thin(Stage flpt) {
+      super(flpt);
+    }
+    protected String getParameters() {
+      return "";
+    }
+    protected Object compute(Object[] inputs) {
+      return FaultScanner.thin((float[][][][])inputs[0]);
+    }
+  }
+
+  /**
+   * Fault skins grown from fault likelihoods, strikes and dips.
+   */
+  public static class Skin extends Stage {
+    public Skin(Stage flpt) {
+      super(flpt);
+    }
+    public void setGrowLikelihoods(double lower, double upper) {
+      _fllo = lower;
+      _flhi = upper;
+    }
+    public void setMaxDeltaStrike(double maxDeltaStrike) {
+      _dpmax = maxDeltaStrike;
+    }
+    public void setMaxPlanarDistance(double maxPlanarDistance) {
+      _dxmax = maxPlanarDistance;
+    }
+    public void setMinSkinSize(int minSize) {
+      _minSize = minSize;
+    }
+    public void setNormalSmoothings(int nsmooth) {
+      _nsmooth = nsmooth;
+    }
+    protected String getParameters() {
+      return _fllo+","+_flhi+","+_dpmax+","+_dxmax+","+_minSize+","+_nsmooth;
+    }
+    protected Object compute(Object[] inputs) {
+      FaultSkinner fs = new FaultSkinner();
+      fs.setGrowLikelihoods(_fllo,_flhi);
+      fs.setMaxDeltaStrike(_dpmax);
+      fs.setMaxPlanarDistance(_dxmax);
+      fs.setMinSkinSize(_minSize);
+      FaultCell[] cells = fs.findCells((float[][][][])inputs[0]);
+      FaultSkin[] skins = fs.findSkins(cells);
+      for (FaultSkin skin:skins)
+        skin.smoothCellNormals(_nsmooth);
+      return skins;
+    }
+    private double _fllo = 0.2, _flhi = 0.5;
+    private double _dpmax = 10.0;
+    private double _dxmax = 0.1;
+    private int _minSize = 2000;
+    private int _nsmooth = 4;
+  }
+
+  /**
+   * Fault skins regrown from the cells of other skins.
+   */
+  public static class ReSkin extends Stage {
+    public ReSkin(Stage skins, Stage flpt) {
+      super(skins,flpt);
+    }
+    public void setParameters(double dfp, double dft, double dnp) {
+      _dfp = dfp;
+      _dft = dft;
+      _dnp = dnp;
+    }
+    public void setGrowLikelihoods(double lower, double upper) {
+      _fllo = lower;
+      _flhi = upper;
+    }
+    public void setMaxPlanarDistance(double maxPlanarDistance) {
+      _dxmax = maxPlanarDistance;
+    }
+    public void setMinSkinSize(int minSize) {
+      _minSize = minSize;
+    }
+    protected String getParameters() {
+      return _dfp+","+_dft+","+_dnp+","+_fllo+","+_flhi+","+
+        _dxmax+","+_minSize;
+    }
+    protected Object compute(Object[] inputs) {
+      FaultSkin[] sks = (FaultSkin[])inputs[0];
+      float[][][] fl = image(inputs[1]);
+      FaultSkinnerX fsx = new FaultSkinnerX();
+      fsx.setParameters((float)_dfp,(float)_dft,(float)_dnp);
+      fsx.setGrowLikelihoods(_fllo,_flhi);
+      fsx.setMinSkinSize(_minSize);
+      fsx.setMaxPlanarDistance(_dxmax);
+      fsx.setSkinning(true);
+      FaultCell[] cells = FaultSkin.getCells(sks);
+      fsx.resetCells(cells);
+      return fsx.findSkinsXX(cells,fl);
+    }
+    private double _dfp = 10.0, _dft = 10.0, _dnp = 0.2;
+    private double _fllo = 0.2, _flhi = 0.5;
+    private double _dxmax = 0.2;
+    private int _minSize = 2000;
+  }
+
+  /**
+   * An image {gs,p2,p3} smoothed along structures but not across faults,
+   * with the slopes used for that smoothing.
+   */
+  public static class Smooth extends Stage {
+    public Smooth(Stage g, Stage skins) {
+      super(g,skins);
+    }
+    public void setSmoothing(double flstop, double sigma) {
+      _flstop = flstop;
+      _sigma = sigma;
+    }
+    public void setSlopeSmoothings(
+      double sigma1, double sigma2, double sigma3, double pmax)
+    {
+      _sigma1 = sigma1;
+      _sigma2 = sigma2;
+      _sigma3 = sigma3;
+      _pmax = pmax;
+    }
+    protected String getParameters() {
+      return _flstop+","+_sigma+","+_sigma1+","+_sigma2+","+_sigma3+","+_pmax;
+    }
+    protected Object compute(Object[] inputs) {
+      float[][][] g = image(inputs[0]);
+      FaultSkin[] skins = (FaultSkin[])inputs[1];
+      int n3 = g.length;
+      int n2 = g[0].length;
+      int n1 = g[0][0].length;
+      float[][][] flt = new float[n3][n2][n1];
+      new FaultSkinnerX().getFl(skins,flt);
+      float[][][][] pe =
+        FaultScanner.slopes(_sigma1,_sigma2,_sigma3,_pmax,g);
+      float[][][] gs = FaultScanner.smooth(_flstop,_sigma,pe[0],pe[1],flt,g);
+      return new float[][][][]{gs,pe[0],pe[1]};
+    }
+    private double _flstop = 0.1, _sigma = 8.0;
+    private double _sigma1 = 8.0, _sigma2 = 1.0, _sigma3 = 1.0;
+    private double _pmax = 5.0;
+  }
+
+  /**
+   * Fault skins with dip slips. As in goSlip of ipfx/demo.py, skins are
+   * not regrown after slips are computed, so that the skins are those of
+   * the input stage, with slips added to their cells.
+   */
+  public static class Slip extends Stage {
+    public Slip(Stage smooth, Stage skins) {
+      super(smooth,skins);
+    }
+    public void setOffset(double offset) {
+      _offset = offset;
+    }
+    public void setMinMaxThrow(double minThrow, double maxThrow) {
+      _smin = minThrow;
+      _smax = maxThrow;
+    }
+    protected String getParameters() {
+      return _offset+","+_smin+","+_smax;
+    }
+    protected Object compute(Object[] inputs) {
+      float[][][][] gp = (float[][][][])inputs[0];
+      FaultSkin[] skins = (FaultSkin[])inputs[1];
+      FaultSlipper fsl = new FaultSlipper(gp[0],gp[1],gp[2]);
+      fsl.setOffset(_offset);
+      fsl.setZeroSlope(false);
+      fsl.computeDipSlips(skins,_smin,_smax);
+      return skins;
+    }
+    private double _offset = 3.0;
+    private double _smin = -15.0, _smax = 15.0;
+  }
+
+  /**
+   * An unfaulted image and unfaulting shifts {fw,t1,t2,t3}, computed
+   * with {@link uff.UnfaultS} from fault skins with dip slips.
+   */
+  public static class Unfault extends Stage {
+    public Unfault(Stage g, Stage skins) {
+      super(g,skins);
+    }
+    public void setSmoothings(double sigma1, double sigma2) {
+      _sigma1 = sigma1;
+      _sigma2 = sigma2;
+    }
+    public void setIterations(int niter) {
+      _niter = niter;
+    }
+    public void setConstraintScale(double scale) {
+      _scale = scale;
+    }
+    protected String getParameters() {
+      return _sigma1+","+_sigma2+","+_niter+","+_scale;
+    }
+    protected Object compute(Object[] inputs) {
+      float[][][] g = image(inputs[0]);
+      FaultSkin[] skins = (FaultSkin[])inputs[1];
+      int n3 = g.length;
+      int n2 = g[0].length;
+      int n1 = g[0][0].length;
+      LocalOrientFilter lof = new LocalOrientFilter(8.0,2.0,2.0);
+      EigenTensors3 et = lof.applyForTensors(g);
+      et.setEigenvalues(0.001f,1.0f,1.0f);
+      float[][][] wp = fillfloat(1.0f,n1,n2,n3);
+      float[][][] sp = new FaultSlipConstraints(skins).screenPoints(wp);
+      mul(sp[3][0],(float)_scale,sp[3][0]);
+      UnfaultS uf = new UnfaultS(_sigma1,_sigma2);
+      uf.setIters(_niter);
+      uf.setTensors(et);
+      float[][][][] t = uf.findShifts(sp,wp);
+      float[][][] fw = new float[n3][n2][n1];
+      uf.applyShifts(t,g,fw);
+      return new float[][][][]{fw,t[0],t[1],t[2]};
+    }
+    private double _sigma1 = 4.0, _sigma2 = 2.0;
+    private int _niter = 100;
+    private double _scale = 10.0;
+  }
+
+  /**
+   * A flattened image, horizon volume and relative geologic time
+   * {gu,x1,u1}, computed with {@link flc.Flattener3}.
+   */
+  public static class Flatten extends Stage {
+    public Flatten(Stage f) {
+      super(f);
+    }
+    public void setSlopeSmoothings(
+      double sigma1, double sigma2, double sigma3, double pmax)
+    {
+      _sigma1 = sigma1;
+      _sigma2 = sigma2;
+      _sigma3 = sigma3;
+      _pmax = pmax;
+    }
+    public void setWeightPower(double power) {
+      _power = power;
+    }
+    public void setSmoothings(double sigma1, double sigma2) {
+      _sigmaf1 = sigma1;
+      _sigmaf2 = sigma2;
+    }
+    public void setIterations(double small, int niter) {
+      _small = small;
+      _niter = niter;
+    }
+    public void setInterpolation(ShiftWarper.Method method) {
+      _method = method;
+    }
+    protected String getParameters() {
+      return _sigma1+","+_sigma2+","+_sigma3+","+_pmax+","+_power+","+
+        _sigmaf1+","+_sigmaf2+","+_small+","+_niter+","+_method;
+    }
+    protected Object compute(Object[] inputs) {
+      float[][][] f = image(inputs[0]);
+      int n3 = f.length;
+      int n2 = f[0].length;
+      int n1 = f[0][0].length;
+      float[][][][] pe =
+        FaultScanner.slopes(_sigma1,_sigma2,_sigma3,_pmax,f);
+      float[][][] wp = pow(pe[2],(float)_power);
+      Flattener3 fl = new Flattener3();
+      fl.setSmoothings(_sigmaf1,_sigmaf2);
+      fl.setIterations(_small,_niter);
+      fl.setInterpolation(_method);
+      Flattener3.Mappings mp = fl.getMappingsFromSlopes(
+        new Sampling(n1),new Sampling(n2),new Sampling(n3),pe[0],pe[1],wp);
+      return new float[][][][]{mp.flatten(f),mp.x1,mp.u1};
+    }
+    private double _sigma1 = 4.0, _sigma2 = 1.0, _sigma3 = 1.0;
+    private double _pmax = 5.0;
+    private double _power = 6.0;
+    private double _sigmaf1 = 6.0, _sigmaf2 = 6.0;
+    private double _small = 0.01;
+    private int _niter = 200;
+    private ShiftWarper.Method _method = ShiftWarper.Method.SINC8;
+  }
+
+  /**
+   * Constructs a pipeline with a new temporary cache directory.
+   * That directory and all files in it are deleted when the JVM exits.
+   */
+  public FaultPipeline() {
+    try {
+      _dir = Files.createTempDirectory("ipfx").toFile();
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+    final File dir = _dir;
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      public void run() {
+        delete(dir);
+      }
+    });
+  }
+
+  /**
+   * Constructs a pipeline with a specified cache directory.
+   * Cached outputs in this directory are reused by this pipeline.
+   * @param cacheDir name of the cache directory; created if necessary.
+   */
+  public FaultPipeline(String cacheDir) {
+    _dir = new File(cacheDir);
+    _dir.mkdirs();
+    Check.argument(_dir.isDirectory(),"cacheDir is a directory");
+  }
+
+  /**
+   * Sets the number of bytes of images kept in memory.
+   * Images recently used are kept in memory; others are spilled to files.
+   * @param nbytes the number of bytes; default is 1/4 of maximum memory.
+   */
+  public void setMemoryLimit(long nbytes) {
+    _nbmax = nbytes;
+    evict();
+  }
+
+  /**
+   * Gets the output of the specified stage.
+   * The output is computed only if not cached in memory or in a file.
+   * @param stage the stage.
+   * @return the output.
+   */
+  public synchronized Object get(Stage stage) {
+    String key = getKey(stage);
+    Object o = _cache.get(key);
+    if (o==null)
+      o = load(key);
+    if (o==null) {
+      Stage[] ss = stage.getInputs();
+      Object[] inputs = new Object[ss.length];
+      for (int is=0; is<ss.length; ++is)
+        inputs[is] = get(ss[is]);
+      o = stage.compute(inputs);
+      ++_ncompute;
+      if (o instanceof FaultSkin[]) {
+        writeSkins(key,(FaultSkin[])o);
+        o = readSkins(key);
+      }
+    }
+    if (!(o instanceof FaultSkin[]) && !_cache.containsKey(key)) {
+      _cache.put(key,o);
+      _nbyte += bytes(o);
+      evict();
+    }
+    return o;
+  }
+
+  /**
+   * Gets the output image of the specified stage.
+   * @param stage the stage.
+   * @return the image; for outputs with multiple images, the first one.
+   */
+  public float[][][] getImage(Stage stage) {
+    return image(get(stage));
+  }
+
+  /**
+   * Gets the output images of the specified stage.
+   * @param stage the stage.
+   * @return the array of images.
+   */
+  public float[][][][] getImages(Stage stage) {
+    Object o = get(stage);
+    return (o instanceof float[][][][]) ?
+      (float[][][][])o :
+      new float[][][][]{(float[][][])o};
+  }
+
+  /**
+   * Gets the output fault skins of the specified stage.
+   * Each call returns a new copy of the skins.
+   * @param stage the stage.
+   * @return the array of skins.
+   */
+  public FaultSkin[] getSkins(Stage stage) {
+    return (FaultSkin[])get(stage);
+  }
+
+  /**
+   * Gets the cache key for the output of the specified stage.
+   * @param stage the stage.
+   * @return the key.
+   */
+  public String getKey(Stage stage) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(stage.getClass().getName());
+    sb.append('(').append(stage.getParameters()).append(')');
+    for (Stage si:stage.getInputs())
+      sb.append(',').append(getKey(si));
+    return hash(sb.toString());
+  }
+
+  /**
+   * Gets the number of stage outputs computed by this pipeline.
+   * @return the number of outputs computed.
+   */
+  public int getComputeCount() {
+    return _ncompute;
+  }
+
+  /**
+   * Writes all images in memory to files and removes them from memory.
+   */
+  public synchronized void flush() {
+    for (Map.Entry<String,Object> e:_cache.entrySet())
+      spill(e.getKey(),e.getValue());
+    _cache.clear();
+    _nbyte = 0;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private File _dir; // cache directory
+  private long _nbmax = Runtime.getRuntime().maxMemory()/4; // memory limit
+  private long _nbyte; // number of bytes of images in memory
+  private int _ncompute; // number of outputs computed
+  private LinkedHashMap<String,Object> _cache = // in access order
+    new LinkedHashMap<String,Object>(16,0.75f,true);
+
+  private static float[][][] image(Object o) {
+    return (o instanceof float[][][][]) ?
+      ((float[][][][])o)[0] :
+      (float[][][])o;
+  }
+
+  private static long bytes(Object o) {
+    float[][][][] f = (o instanceof float[][][][]) ?
+      (float[][][][])o :
+      new float[][][][]{(float[][][])o};
+    long nb = 0;
+    for (float[][][] fi:f)
+      nb += 4L*fi.length*fi[0].length*fi[0][0].length;
+    return nb;
+  }
+
+  // Spills least recently used images while memory exceeds the limit.
+  private void evict() {
+    Iterator<Map.Entry<String,Object>> it = _cache.entrySet().iterator();
+    while (_nbyte>_nbmax && it.hasNext()) {
+      Map.Entry<String,Object> e = it.next();
+      spill(e.getKey(),e.getValue());
+      _nbyte -= bytes(e.getValue());
+      it.remove();
+    }
+  }
+
+  private static String hash(String s) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      return hex(md.digest(s.getBytes("UTF-8")));
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String hash(float[][][] f) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      int n1 = f[0][0].length;
+      ByteBuffer bb = ByteBuffer.allocate(4*n1);
+      FloatBuffer fb = bb.asFloatBuffer();
+      md.update((f.length+","+f[0].length+","+n1).getBytes("UTF-8"));
+      for (float[][] f3:f) {
+        for (float[] f2:f3) {
+          fb.clear();
+          fb.put(f2);
+          md.update(bb.array());
+        }
+      }
+      return hex(md.digest());
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String hex(byte[] b) {
+    StringBuilder sb = new StringBuilder();
+    for (byte bi:b)
+      sb.append(String.format("%02x",bi));
+    return sb.toString();
+  }
+
+  private File imageFile(String key) {
+    return new File(_dir,key+".dat");
+  }
+
+  private File skinsFile(String key) {
+    return new File(_dir,key+".fsk");
+  }
+
+  // Image files begin with a header {n4,n3,n2,n1}, in which n4 is zero
+  // for a single image, followed by floats in native byte order. Floats
+  // are written and read one 2D slice at a time, with positional I/O on
+  // the file channel, so that no buffer is larger than one slice.
+  private void spill(String key, Object o) {
+    File file = imageFile(key);
+    if (file.exists())
+      return;
+    boolean single = !(o instanceof float[][][][]);
+    float[][][][] f = single ?
+      new float[][][][]{(float[][][])o} :
+      (float[][][][])o;
+    int n4 = f.length;
+    int n3 = f[0].length;
+    int n2 = f[0][0].length;
+    int n1 = f[0][0][0].length;
+    File temp = new File(_dir,key+".tmp");
+    try {
+      RandomAccessFile raf = new RandomAccessFile(temp,"rw");
+      try {
+        FileChannel fc = raf.getChannel();
+        ByteBuffer bb = ByteBuffer.allocate(16);
+        bb.order(ByteOrder.nativeOrder());
+        bb.putInt(single?0:n4).putInt(n3).putInt(n2).putInt(n1).flip();
+        writeFully(fc,bb,0L);
+        long nslice = 4L*n1*n2;
+        bb = ByteBuffer.allocateDirect((int)nslice);
+        bb.order(ByteOrder.nativeOrder());
+        FloatBuffer fb = bb.asFloatBuffer();
+        for (int i4=0; i4<n4; ++i4) {
+          for (int i3=0; i3<n3; ++i3) {
+            fb.clear();
+            for (int i2=0; i2<n2; ++i2)
+              fb.put(f[i4][i3][i2]);
+            bb.clear();
+            writeFully(fc,bb,16L+nslice*(i3+(long)n3*i4));
+          }
+        }
+      } finally {
+        raf.close();
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+    rename(temp,file);
+  }
+
+  // Returns null if no complete output is cached for the specified key.
+  // Image files with lengths inconsistent with their headers and skin
+  // directories with missing skin files are deleted.
+  private Object load(String key) {
+    File file = skinsFile(key);
+    if (file.isDirectory()) {
+      FaultSkin[] skins = readSkins(key);
+      if (skins==null)
+        delete(file);
+      return skins;
+    }
+    file = imageFile(key);
+    if (!file.isFile())
+      return null;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file,"r");
+      try {
+        FileChannel fc = raf.getChannel();
+        ByteBuffer bb = ByteBuffer.allocate(16);
+        bb.order(ByteOrder.nativeOrder());
+        if (fc.size()>=16L)
+          readFully(fc,bb,0L);
+        bb.flip();
+        int m4 = (bb.remaining()==16)?bb.getInt():-1;
+        int n3 = (m4>=0)?bb.getInt():0;
+        int n2 = (m4>=0)?bb.getInt():0;
+        int n1 = (m4>=0)?bb.getInt():0;
+        int n4 = max(m4,1);
+        long nslice = 4L*n1*n2;
+        if (m4<0 || n3<=0 || n2<=0 || n1<=0 ||
+            fc.size()!=16L+nslice*n3*n4) {
+          raf.close();
+          file.delete();
+          return null;
+        }
+        float[][][][] f = new float[n4][n3][n2][n1];
+        bb = ByteBuffer.allocateDirect((int)nslice);
+        bb.order(ByteOrder.nativeOrder());
+        FloatBuffer fb = bb.asFloatBuffer();
+        for (int i4=0; i4<n4; ++i4) {
+          for (int i3=0; i3<n3; ++i3) {
+            bb.clear();
+            readFully(fc,bb,16L+nslice*(i3+(long)n3*i4));
+            fb.clear();
+            for (int i2=0; i2<n2; ++i2)
+              fb.get(f[i4][i3][i2]);
+          }
+        }
+        return (m4==0)?f[0]:f;
+      } finally {
+        raf.close();
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  // Skins are written with the file format of FaultSkin, one file per
+  // skin, into a directory named by the cache key. A count file with the
+  // number of skins is written last, so that a directory with skin files
+  // but no count file, or with fewer skin files than counted, is known
+  // to be incomplete.
+  private void writeSkins(String key, FaultSkin[] skins) {
+    File dir = skinsFile(key);
+    File temp = new File(_dir,key+".tmp");
+    delete(temp);
+    temp.mkdirs();
+    int ns = skins.length;
+    for (int is=0; is<ns; ++is) {
+      String name = new File(temp,"skin"+is).getPath();
+      FaultSkin.writeToFile(name,skins[is]);
+    }
+    try {
+      Writer w = new FileWriter(new File(temp,"count"));
+      try {
+        w.write(Integer.toString(ns));
+      } finally {
+        w.close();
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+    delete(dir);
+    rename(temp,dir);
+  }
+
+  // Returns null if the skins directory is incomplete.
+  private FaultSkin[] readSkins(String key) {
+    File dir = skinsFile(key);
+    int ns;
+    try {
+      BufferedReader br = new BufferedReader(
+        new FileReader(new File(dir,"count")));
+      try {
+        ns = Integer.parseInt(br.readLine().trim());
+      } finally {
+        br.close();
+      }
+    } catch (Exception e) {
+      return null;
+    }
+    for (int is=0; is<ns; ++is) {
+      if (!new File(dir,"skin"+is).isFile())
+        return null;
+    }
+    FaultSkin[] skins = new FaultSkin[ns];
+    for (int is=0; is<ns; ++is) {
+      String name = new File(dir,"skin"+is).getPath();
+      skins[is] = FaultSkin.readFromFile(name);
+    }
+    return skins;
+  }
+
+  private static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files!=null) {
+      for (File fi:files)
+        delete(fi);
+    }
+    file.delete();
+  }
+
+  private static void rename(File from, File to) {
+    try {
+      Files.move(from.toPath(),to.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  private static void readFully(FileChannel fc, ByteBuffer bb, long pos)
+    throws IOException
+  {
+    while (bb.hasRemaining()) {
+      int nb = fc.read(bb,pos);
+      if (nb<0)
+        throw new EOFException("unexpected end of file");
+      pos += nb;
+    }
+  }
+
+  private static void writeFully(FileChannel fc, ByteBuffer bb, long pos)
+    throws IOException
+  {
+    while (bb.hasRemaining())
+      pos += fc.write(bb,pos);
+  }
+}
@@ -10,8 +10,8 @@ package ipfx;
 import java.util.*;
 import edu.mines.jtk.interp.*;
 import edu.mines.jtk.util.*;
-import edu.mines.jtk.dsp.SincInterpolator;
 import edu.mines.jtk.dsp.LocalDiffusionKernel;
+import util.ShiftWarper;
 
 import static edu.mines.jtk.util.ArrayMath.*;
 
@@ -351,30 +351,57 @@ public class FaultSlipper {
    * @param g image to be unfaulted.
    * @return unfaulted image.
    */
-  public static float[][][] unfault(float[][][][] s, final float[][][] g) {
-    final int n1 = g[0][0].length;
-    final int n2 = g[0].length;
-    final int n3 = g.length;
-    final float[][][] s1 = s[0];
-    final float[][][] s2 = s[1];
-    final float[][][] s3 = s[2];
-    final float[][][] gs = new float[n3][n2][n1];
-    final SincInterpolator si = new SincInterpolator();
-    Parallel.loop(n3,new Parallel.LoopInt() {
-    public void compute(int i3) {
-      for (int i2=0; i2<n2; ++i2) {
-        for (int i1=0; i1<n1; ++i1) {
-          float x1 = i1+s1[i3][i2][i1];
-          float x2 = i2+s2[i3][i2][i1];
-          float x3 = i3+s3[i3][i2][i1];
-          gs[i3][i2][i1] = si.interpolate(
-              n1,1.0,0.0,
-              n2,1.0,0.0,
-              n3,1.0,0.0,
-              g,x1,x2,x3);
-        }
-      }
-    }});
+  public static float[][][] unfault(float[][][][] s, float[][][] g) {
+    return unfault(s,g,ShiftWarper.Method.SINC8);
+  }
+
+  /**
+   * Unfaults an image using interpolated dip-slip vectors and a specified
+   * interpolation method.
+   * @param s array {s1,s2,s3} of interpolated dip-slip vectors.
+   * @param g image to be unfaulted.
+   * @param method the interpolation method.
+   * @return unfaulted image.
+   */
+  public static float[][][] unfault(
+    float[][][][] s, float[][][] g, ShiftWarper.Method method)
+  {
+    int n1 = g[0][0].length;
+    int n2 = g[0].length;
+    int n3 = g.length;
+    float[][][] gs = new float[n3][n2][n1];
+    new ShiftWarper(method).apply(s[0],s[1],s[2],g,gs);
+    return gs;
+  }
+
+  /**
+   * Unfaults multiple images using the same dip-slip vectors.
+   * Interpolation stencils are computed once and used for all images.
+   * @param s array {s1,s2,s3} of interpolated dip-slip vectors.
+   * @param g array {g1,g2,...} of images to be unfaulted.
+   * @return array of unfaulted images.
+   */
+  public static float[][][][] unfault(float[][][][] s, float[][][][] g) {
+    return unfault(s,g,ShiftWarper.Method.SINC8);
+  }
+
+  /**
+   * Unfaults multiple images using the same dip-slip vectors and a
+   * specified interpolation method.
+   * @param s array {s1,s2,s3} of interpolated dip-slip vectors.
+   * @param g array {g1,g2,...} of images to be unfaulted.
+   * @param method the interpolation method.
+   * @return array of unfaulted images.
+   */
+  public static float[][][][] unfault(
+    float[][][][] s, float[][][][] g, ShiftWarper.Method method)
+  {
+    int ng = g.length;
+    int n1 = g[0][0][0].length;
+    int n2 = g[0][0].length;
+    int n3 = g[0].length;
+    float[][][][] gs = new float[ng][n3][n2][n1];
+    new ShiftWarper(method).apply(s[0],s[1],s[2],g,gs);
     return gs;
   }
 
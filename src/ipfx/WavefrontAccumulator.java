@@ -0,0 +1,367 @@
+/****************************************************************************
+Copyright (c) 2016, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package ipfx;
+
+import edu.mines.jtk.util.*;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * Wavefront-parallel accumulation of alignment errors for dynamic warping.
+ * <p>
+ * The non-linear accumulation of errors in dynamic warping is a recurrence
+ * along one sample dimension, so each line of samples along that dimension
+ * must be processed serially. However, lines are independent. This class
+ * advances tiles of adjacent lines together, one step of the recurrence
+ * for all lines in a tile before the next step, so that rows of errors
+ * for adjacent lines, which are typically adjacent in memory, are used
+ * while in cache. Within each row, the loop over lags has no branches and
+ * no bounds other than those for the first and last lags, so that it can
+ * be vectorized by the compiler. Tiles are processed in parallel, and
+ * accumulations in forward and reverse directions for each tile are
+ * computed concurrently when smoothing errors.
+ * <p>
+ * Results are identical to those computed by {@link DynamicWarping},
+ * because sums and minimums are computed in the same order.
+ *
+ * @author Xinming Wu, Colorado School of Mines
+ * @version 2016.12.10
+ */
+public class WavefrontAccumulator {
+
+  /**
+   * Constructs an accumulator with a default tile size of 16 lines.
+   */
+  public WavefrontAccumulator() {
+    this(16);
+  }
+
+  /**
+   * Constructs an accumulator with specified tile size.
+   * @param ntile number of lines accumulated together in each tile.
+   */
+  public WavefrontAccumulator(int ntile) {
+    Check.argument(ntile>0,"ntile>0");
+    _nt = ntile;
+  }
+
+  /**
+   * Accumulates errors along the 1st dimension of a 2D image.
+   * @param dir accumulation direction, positive or negative.
+   * @param b sample offset used to constrain changes in lag.
+   * @param e input array[n2][n1][nl] of alignment errors.
+   * @param d output array[n2][n1][nl] of accumulated errors.
+   */
+  public void accumulate1(
+    final int dir, final int b, final float[][][] e, final float[][][] d)
+  {
+    final int n2 = e.length;
+    final int n1 = e[0].length;
+    Parallel.loop(n2,new Parallel.LoopInt() {
+    public void compute(int i2) {
+      float[][][] el = new float[n1][1][];
+      float[][][] dl = new float[n1][1][];
+      for (int i1=0; i1<n1; ++i1) {
+        el[i1][0] = e[i2][i1];
+        dl[i1][0] = d[i2][i1];
+      }
+      accumulate(dir,b,el,dl,1);
+    }});
+  }
+
+  /**
+   * Accumulates errors along the 2nd dimension of a 2D image.
+   * @param dir accumulation direction, positive or negative.
+   * @param b sample offset used to constrain changes in lag.
+   * @param e input array[n2][n1][nl] of alignment errors.
+   * @param d output array[n2][n1][nl] of accumulated errors.
+   */
+  public void accumulate2(
+    final int dir, final int b, final float[][][] e, final float[][][] d)
+  {
+    final int n2 = e.length;
+    final int n1 = e[0].length;
+    final int nt = _nt;
+    int mt = (n1+nt-1)/nt;
+    Parallel.loop(mt,new Parallel.LoopInt() {
+    public void compute(int it) {
+      int j1 = it*nt;
+      int lt = min(nt,n1-j1);
+      float[][][] el = new float[n2][lt][];
+      float[][][] dl = new float[n2][lt][];
+      for (int i2=0; i2<n2; ++i2) {
+        for (int kt=0; kt<lt; ++kt) {
+          el[i2][kt] = e[i2][j1+kt];
+          dl[i2][kt] = d[i2][j1+kt];
+        }
+      }
+      accumulate(dir,b,el,dl,lt);
+    }});
+  }
+
+  /**
+   * Accumulates errors along the 3rd dimension of a 3D image.
+   * @param dir accumulation direction, positive or negative.
+   * @param b sample offset used to constrain changes in lag.
+   * @param e input array[n3][n2][n1][nl] of alignment errors.
+   * @param d output array[n3][n2][n1][nl] of accumulated errors.
+   */
+  public void accumulate3(
+    final int dir, final int b,
+    final float[][][][] e, final float[][][][] d)
+  {
+    final int n3 = e.length;
+    final int n2 = e[0].length;
+    final int n1 = e[0][0].length;
+    final int nt = _nt;
+    final int mt = (n1+nt-1)/nt;
+    Parallel.loop(n2*mt,new Parallel.LoopInt() {
+    public void compute(int i2t) {
+      int i2 = i2t/mt;
+      int j1 = (i2t%mt)*nt;
+      int lt = min(nt,n1-j1);
+      float[][][] el = new float[n3][lt][];
+      float[][][] dl = new float[n3][lt][];
+      for (int i3=0; i3<n3; ++i3) {
+        for (int kt=0; kt<lt; ++kt) {
+          el[i3][kt] = e[i3][i2][j1+kt];
+          dl[i3][kt] = d[i3][i2][j1+kt];
+        }
+      }
+      accumulate(dir,b,el,dl,lt);
+    }});
+  }
+
+  /**
+   * Smooths alignment errors in the 1st dimension of a 2D image.
+   * Does not normalize errors after smoothing. Input and output
+   * arrays can be the same array.
+   * @param b sample offset used to constrain changes in lag.
+   * @param e input array[n2][n1][nl] of alignment errors.
+   * @param es output array[n2][n1][nl] of smoothed errors.
+   */
+  public void smooth1(
+    final int b, final float[][][] e, final float[][][] es)
+  {
+    final int n2 = e.length;
+    final int n1 = e[0].length;
+    final int nl = e[0][0].length;
+    final Parallel.Unsafe<float[][][][]> du =
+      new Parallel.Unsafe<float[][][][]>();
+    Parallel.loop(n2,new Parallel.LoopInt() {
+    public void compute(int i2) {
+      float[][][][] dfr = du.get();
+      if (dfr==null) du.set(dfr=new float[2][n1][1][nl]);
+      float[][][] el = new float[n1][1][];
+      float[][][] esl = new float[n1][1][];
+      for (int i1=0; i1<n1; ++i1) {
+        el[i1][0] = e[i2][i1];
+        esl[i1][0] = es[i2][i1];
+      }
+      smooth(b,el,esl,dfr[0],dfr[1],1);
+    }});
+  }
+
+  /**
+   * Smooths alignment errors in the 2nd dimension of a 2D image.
+   * Does not normalize errors after smoothing. Input and output
+   * arrays can be the same array.
+   * @param b sample offset used to constrain changes in lag.
+   * @param e input array[n2][n1][nl] of alignment errors.
+   * @param es output array[n2][n1][nl] of smoothed errors.
+   */
+  public void smooth2(
+    final int b, final float[][][] e, final float[][][] es)
+  {
+    final int n2 = e.length;
+    final int n1 = e[0].length;
+    final int nl = e[0][0].length;
+    final int nt = _nt;
+    int mt = (n1+nt-1)/nt;
+    final Parallel.Unsafe<float[][][][]> du =
+      new Parallel.Unsafe<float[][][][]>();
+    Parallel.loop(mt,new Parallel.LoopInt() {
+    public void compute(int it) {
+      float[][][][] dfr = du.get();
+      if (dfr==null) du.set(dfr=new float[2][n2][nt][nl]);
+      int j1 = it*nt;
+      int lt = min(nt,n1-j1);
+      float[][][] el = new float[n2][lt][];
+      float[][][] esl = new float[n2][lt][];
+      for (int i2=0; i2<n2; ++i2) {
+        for (int kt=0; kt<lt; ++kt) {
+          el[i2][kt] = e[i2][j1+kt];
+          esl[i2][kt] = es[i2][j1+kt];
+        }
+      }
+      smooth(b,el,esl,dfr[0],dfr[1],lt);
+    }});
+  }
+
+  /**
+   * Smooths alignment errors in the 3rd dimension of a 3D image.
+   * Does not normalize errors after smoothing. Input and output
+   * arrays can be the same array.
+   * @param b sample offset used to constrain changes in lag.
+   * @param e input array[n3][n2][n1][nl] of alignment errors.
+   * @param es output array[n3][n2][n1][nl] of smoothed errors.
+   */
+  public void smooth3(
+    final int b, final float[][][][] e, final float[][][][] es)
+  {
+    final int n3 = e.length;
+    final int n2 = e[0].length;
+    final int n1 = e[0][0].length;
+    final int nl = e[0][0][0].length;
+    final int nt = _nt;
+    final int mt = (n1+nt-1)/nt;
+    final Parallel.Unsafe<float[][][][]> du =
+      new Parallel.Unsafe<float[][][][]>();
+    Parallel.loop(n2*mt,new Parallel.LoopInt() {
+    public void compute(int i2t) {
+      float[][][][] dfr = du.get();
+      if (dfr==null) du.set(dfr=new float[2][n3][nt][nl]);
+      int i2 = i2t/mt;
+      int j1 = (i2t%mt)*nt;
+      int lt = min(nt,n1-j1);
+      float[][][] el = new float[n3][lt][];
+      float[][][] esl = new float[n3][lt][];
+      for (int i3=0; i3<n3; ++i3) {
+        for (int kt=0; kt<lt; ++kt) {
+          el[i3][kt] = e[i3][i2][j1+kt];
+          esl[i3][kt] = es[i3][i2][j1+kt];
+        }
+      }
+      smooth(b,el,esl,dfr[0],dfr[1],lt);
+    }});
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private int _nt; // number of lines per tile
+
+  /**
+   * Smooths errors for one tile of lines, with forward and reverse
+   * accumulations computed concurrently in work arrays df and dr.
+   */
+  private static void smooth(
+    final int b, final float[][][] e, float[][][] es,
+    final float[][][] df, final float[][][] dr, int lt)
+  {
+    final int ni = e.length;
+    final int nl = e[0][0].length;
+    final int ltf = lt;
+    Parallel.loop(2,new Parallel.LoopInt() {
+    public void compute(int id) {
+      float[][][] d = (id==0)?df:dr;
+      accumulate((id==0)?1:-1,b,e,d,ltf);
+    }});
+    for (int ii=0; ii<ni; ++ii) {
+      for (int kt=0; kt<lt; ++kt) {
+        float[] ei = e[ii][kt];
+        float[] esi = es[ii][kt];
+        float[] dfi = df[ii][kt];
+        float[] dri = dr[ii][kt];
+        for (int il=0; il<nl; ++il)
+          esi[il] = dfi[il]+dri[il]-ei[il];
+      }
+    }
+  }
+
+  /**
+   * Accumulates errors for one tile of lines.
+   * @param dir accumulation direction, positive or negative.
+   * @param b sample offset used to constrain changes in lag.
+   * @param e input array[ni][lt][nl] of rows of alignment errors.
+   * @param d output array[ni][lt][nl] of rows of accumulated errors.
+   * @param lt number of lines in the tile.
+   */
+  private static void accumulate(
+    int dir, int b, float[][][] e, float[][][] d, int lt)
+  {
+    int ni = e.length;
+    int nl = e[0][0].length;
+    int nim1 = ni-1;
+    int ib = (dir>0)?0:nim1;
+    int ie = (dir>0)?ni:-1;
+    int is = (dir>0)?1:-1;
+    float[] tm = new float[nl];
+    float[] tp = new float[nl];
+    for (int kt=0; kt<lt; ++kt)
+      copy(e[ib][kt],d[ib][kt]);
+    for (int ii=ib+is; ii!=ie; ii+=is) {
+      int ji = max(0,min(nim1,ii-is));
+      int jb = max(0,min(nim1,ii-is*b));
+      for (int kt=0; kt<lt; ++kt) {
+        if (ji==jb) {
+          accumulateRow(e[ii][kt],d[ji][kt],d[jb][kt],d[ii][kt]);
+        } else {
+          sumsRow(d[jb][kt],tm,tp);
+          for (int kb=ji; kb!=jb; kb-=is)
+            addRow(e[kb][kt],tm,tp);
+          accumulateRow(e[ii][kt],d[ji][kt],tm,tp,d[ii][kt]);
+        }
+      }
+    }
+  }
+
+  /**
+   * One step of accumulation when the strain parameter b is one.
+   * Lags are clamped at the first and last lags, as in dynamic warping.
+   */
+  private static void accumulateRow(
+    float[] ei, float[] dji, float[] djb, float[] di)
+  {
+    int nl = ei.length;
+    int nlm1 = nl-1;
+    di[0] = min(min(djb[0],dji[0]),djb[min(1,nlm1)])+ei[0];
+    for (int il=1; il<nlm1; ++il)
+      di[il] = min(min(djb[il-1],dji[il]),djb[il+1])+ei[il];
+    if (nlm1>0)
+      di[nlm1] = min(min(djb[nlm1-1],dji[nlm1]),djb[nlm1])+ei[nlm1];
+  }
+
+  /**
+   * One step of accumulation when the strain parameter b exceeds one.
+   * Arrays tm and tp contain accumulated errors for lags il-1 and il+1.
+   */
+  private static void accumulateRow(
+    float[] ei, float[] dji, float[] tm, float[] tp, float[] di)
+  {
+    int nl = ei.length;
+    for (int il=0; il<nl; ++il)
+      di[il] = min(min(tm[il],dji[il]),tp[il])+ei[il];
+  }
+
+  /**
+   * Initializes tm[il] = d[il-1] and tp[il] = d[il+1], clamped.
+   */
+  private static void sumsRow(float[] d, float[] tm, float[] tp) {
+    int nl = d.length;
+    int nlm1 = nl-1;
+    tm[0] = d[0];
+    for (int il=1; il<nl; ++il)
+      tm[il] = d[il-1];
+    for (int il=0; il<nlm1; ++il)
+      tp[il] = d[il+1];
+    tp[nlm1] = d[nlm1];
+  }
+
+  /**
+   * Adds errors e[il-1] to tm[il] and e[il+1] to tp[il], clamped.
+   */
+  private static void addRow(float[] e, float[] tm, float[] tp) {
+    int nl = e.length;
+    int nlm1 = nl-1;
+    tm[0] += e[0];
+    for (int il=1; il<nl; ++il)
+      tm[il] += e[il-1];
+    for (int il=0; il<nlm1; ++il)
+      tp[il] += e[il+1];
+    tp[nlm1] += e[nlm1];
+  }
+}
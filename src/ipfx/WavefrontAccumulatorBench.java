@@ -0,0 +1,101 @@
+/****************************************************************************
+Copyright (c) 2016, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package ipfx;
+
+import java.util.Random;
+import edu.mines.jtk.util.*;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * Benchmarks wavefront-parallel accumulation of alignment errors.
+ * Compares the accumulators of {@link DynamicWarping} with those of
+ * {@link WavefrontAccumulator} for arrays of random errors, and checks
+ * that both compute the same accumulated errors.
+ * <p>
+ * Usage: java ipfx.WavefrontAccumulatorBench [n1 n2 nl b]
+ *
+ * @author Xinming Wu, Colorado School of Mines
+ * @version 2016.12.10
+ */
+public class WavefrontAccumulatorBench {
+
+  public static void main(String[] args) {
+    int n1 = (args.length>0)?Integer.parseInt(args[0]):1000;
+    int n2 = (args.length>1)?Integer.parseInt(args[1]):200;
+    int nl = (args.length>2)?Integer.parseInt(args[2]):101;
+    int b  = (args.length>3)?Integer.parseInt(args[3]):2;
+    trace("n1="+n1+" n2="+n2+" nl="+nl+" b="+b);
+    float[][][] e = randomErrors(n1,n2,nl);
+    float[][][] d1 = new float[n2][n1][nl];
+    float[][][] d2 = new float[n2][n1][nl];
+    DynamicWarping dw = new DynamicWarping(-nl/2,nl-1-nl/2);
+    dw.setStrainMax(1.0/b);
+    WavefrontAccumulator wa = new WavefrontAccumulator();
+
+    // accumulation in 1st dimension
+    double t1 = time(3,new Runnable() {
+      public void run() { dw.accumulateForward1(e,d1); }});
+    double t2 = time(3,new Runnable() {
+      public void run() { wa.accumulate1(1,b,e,d2); }});
+    report("accumulate1",t1,t2,d1,d2);
+
+    // accumulation in 2nd dimension
+    t1 = time(3,new Runnable() {
+      public void run() { dw.accumulateForward2(e,d1); }});
+    t2 = time(3,new Runnable() {
+      public void run() { wa.accumulate2(1,b,e,d2); }});
+    report("accumulate2",t1,t2,d1,d2);
+
+    // smoothing in 1st and 2nd dimensions, forward and reverse
+    t1 = time(3,new Runnable() {
+      public void run() { dw.smoothErrors(e,d1); }});
+    t2 = time(3,new Runnable() {
+      public void run() {
+        wa.smooth1(b,e,d2);
+        DynamicWarping.normalizeErrors(d2);
+        wa.smooth2(b,d2,d2);
+        DynamicWarping.normalizeErrors(d2);
+      }});
+    report("smooth",t1,t2,d1,d2);
+  }
+
+  private static float[][][] randomErrors(int n1, int n2, int nl) {
+    Random r = new Random(314159);
+    float[][][] e = new float[n2][n1][nl];
+    for (int i2=0; i2<n2; ++i2)
+      for (int i1=0; i1<n1; ++i1)
+        for (int il=0; il<nl; ++il)
+          e[i2][i1][il] = r.nextFloat();
+    return e;
+  }
+
+  // Runs a few times to warm up, then returns the best of nrun times.
+  private static double time(int nrun, Runnable r) {
+    Stopwatch sw = new Stopwatch();
+    double tbest = Double.MAX_VALUE;
+    for (int irun=0; irun<2+nrun; ++irun) {
+      sw.restart();
+      r.run();
+      sw.stop();
+      if (irun>=2)
+        tbest = Math.min(tbest,sw.time());
+    }
+    return tbest;
+  }
+
+  private static void report(
+    String name, double t1, double t2, float[][][] d1, float[][][] d2)
+  {
+    float dmax = max(abs(sub(d1,d2)));
+    trace(name+": current="+t1+" s, wavefront="+t2+" s, speedup="+
+      (float)(t1/t2)+", max difference="+dmax);
+  }
+
+  private static void trace(String s) {
+    System.out.println(s);
+  }
+}
@@ -1,6 +1,10 @@
 package lsa;
 
+import java.io.IOException;
+
 import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.io.ArrayFile;
+import edu.mines.jtk.util.Parallel;
 import edu.mines.jtk.interp.*;
 import static edu.mines.jtk.util.ArrayMath.*;
 
@@ -39,6 +43,89 @@ public class LocalSimilarity {
     _niter = niter;
   }
 
+  // Sets the half-width of lateral smoothing for 3D similarities. If 
+  // positive, all traces in each inline are solved jointly, with shaping
+  // smoothing along the inline as well as in time; otherwise, each trace
+  // is solved separately, as in the 1D method.
+  public void setLateralSmoothing(float sigma){
+    _sigmaL = sigma;
+  }
+
+  /**
+   * Computes local similarities for all traces of two 3D images.
+   * For each pair of traces, the similarity for each shift is the product 
+   * of forward and reverse similarities, as in the 1D method. Inlines 
+   * are processed in parallel, with work arrays and smoothing filters
+   * owned by each thread and reused for all of its inlines.
+   * @param x array[n3][n2][n1] for 1st image.
+   * @param y array[n3][n2][n1] for 2nd image.
+   * @return array[n3][n2][ns][n1] of similarities.
+   */
+  public float[][][][] apply(final float[][][] x, final float[][][] y) {
+    final int n3 = x.length;
+    final int n2 = x[0].length;
+    final int n1 = x[0][0].length;
+    final int ns = _ss.getCount();
+    final float[][][][] c = new float[n3][][][];
+    final Parallel.Unsafe<SolverBuffers> sbu = 
+      new Parallel.Unsafe<SolverBuffers>();
+    Parallel.loop(n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      SolverBuffers sb = sbu.get();
+      if (sb==null)
+        sbu.set(sb=new SolverBuffers(n2,n1));
+      c[i3] = new float[n2][ns][n1];
+      similarity(x[i3],y[i3],sb,c[i3]);
+    }});
+    return c;
+  }
+
+  /**
+   * Computes local similarities for two 3D images and writes them to a 
+   * file, one inline at a time. Memory used for similarities is then 
+   * proportional to the number of threads, not the number of inlines.
+   * The file contains floats[n3][n2][ns][n1] with big-endian byte order.
+   * @param x array[n3][n2][n1] for 1st image.
+   * @param y array[n3][n2][n1] for 2nd image.
+   * @param fileName name of the file of similarities.
+   */
+  public void apply(
+    final float[][][] x, final float[][][] y, String fileName) 
+  {
+    final int n3 = x.length;
+    final int n2 = x[0].length;
+    final int n1 = x[0][0].length;
+    final int ns = _ss.getCount();
+    try {
+      final ArrayFile af = new ArrayFile(fileName,"rw");
+      try {
+        final Parallel.Unsafe<SolverBuffers> sbu = 
+          new Parallel.Unsafe<SolverBuffers>();
+        Parallel.loop(n3,new Parallel.LoopInt() {
+        public void compute(int i3) {
+          SolverBuffers sb = sbu.get();
+          if (sb==null)
+            sbu.set(sb=new SolverBuffers(n2,n1));
+          if (sb.c==null)
+            sb.c = new float[n2][ns][n1];
+          similarity(x[i3],y[i3],sb,sb.c);
+          try {
+            synchronized(af) {
+              af.seek(4L*n1*ns*n2*i3);
+              af.writeFloats(sb.c);
+            }
+          } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+          }
+        }});
+      } finally {
+        af.close();
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
   public float[][] apply(float[] x, float[] y) {
     float[][] p = apply( 1,x,y);
     float[][] q = apply(-1,y,x);
@@ -122,6 +209,151 @@ public class LocalSimilarity {
     return r;
   }
 
+  // Buffers owned by one thread and reused for all inlines it processes.
+  // Arrays with m rows hold one trace, or all n2 traces of an inline if 
+  // traces are solved jointly.
+  private class SolverBuffers {
+    float[][][] c; // similarities for one inline, if written to a file
+    float[][] xs,b,d,z,r,p,q,t; // shifted traces, rhs, CG work arrays
+    float[][] f; // forward similarities
+    SincInterpolator si; // for shifting traces
+    RecursiveExponentialFilter rf1,rf2; // smoothing in time and laterally
+    SolverBuffers(int n2, int n1) {
+      int m = (_sigmaL>0.0f)?n2:1;
+      xs = new float[m][n1]; b = new float[m][n1]; d = new float[m][n1];
+      z = new float[m][n1]; r = new float[m][n1]; p = new float[m][n1];
+      q = new float[m][n1]; t = new float[m][n1]; f = new float[m][n1];
+      si = new SincInterpolator();
+      si.setExtrapolation(SincInterpolator.Extrapolation.CONSTANT);
+      rf1 = makeFilter(_sigma1);
+      rf2 = makeFilter(_sigmaL);
+    }
+  }
+
+  private static RecursiveExponentialFilter makeFilter(float sigma) {
+    if (sigma<=0.0f)
+      return null;
+    RecursiveExponentialFilter ref = new RecursiveExponentialFilter(sigma);
+    ref.setEdges(RecursiveExponentialFilter.Edges.OUTPUT_ZERO_SLOPE);
+    return ref;
+  }
+
+  // Computes similarities c[n2][ns][n1] for one inline of traces x and y.
+  // For each shift s, the forward similarity solves for x(t+s)y(t) with
+  // denominator x(t+s)^2, and the reverse similarity solves for the same
+  // numerator with denominator y(t)^2, as in apply(x,y) for 1D traces.
+  private void similarity(
+    float[][] x, float[][] y, SolverBuffers sb, float[][][] c) 
+  {
+    int n2 = x.length;
+    int n1 = x[0].length;
+    int ns = _ss.getCount();
+    int m = sb.b.length;
+    for (int j2=0; j2<n2; j2+=m) {
+      for (int is=0; is<ns; ++is) {
+        double s = _ss.getValue(is);
+        for (int k2=0; k2<m; ++k2) {
+          float[] xs = sb.xs[k2];
+          float[] yk = y[j2+k2];
+          sb.si.interpolate(n1,1.0,0.0,x[j2+k2],n1,1.0,s,xs);
+          for (int i1=0; i1<n1; ++i1) {
+            sb.b[k2][i1] = xs[i1]*yk[i1];
+            sb.d[k2][i1] = xs[i1]*xs[i1];
+          }
+        }
+        solve(sb);
+        copy(sb.r,sb.f);
+        for (int k2=0; k2<m; ++k2) {
+          float[] yk = y[j2+k2];
+          for (int i1=0; i1<n1; ++i1)
+            sb.d[k2][i1] = yk[i1]*yk[i1];
+        }
+        solve(sb);
+        for (int k2=0; k2<m; ++k2) {
+          float[] ck = c[j2+k2][is];
+          float[] fk = sb.f[k2];
+          float[] rk = sb.r[k2];
+          for (int i1=0; i1<n1; ++i1)
+            ck[i1] = fk[i1]*rk[i1];
+        }
+      }
+    }
+  }
+
+  // Solves (S'(D-cI)S+cI)z = S'b for z, where D = diag(d), c = 0.1 as in 
+  // A2, and S is shaping smoothing, by conjugate gradients. Returns the 
+  // similarity Sz in sb.r. Uses no arrays other than those in sb.
+  private void solve(SolverBuffers sb) {
+    float[][] z = sb.z, r = sb.r, p = sb.p, q = sb.q;
+    copy(sb.b,r);
+    smooth(sb,r);
+    zero(z);
+    copy(r,p);
+    double rr = dot(r,r);
+    double rrsmall = rr*_small*_small;
+    for (int iter=0; iter<_niter && rr>rrsmall; ++iter) {
+      applyA(sb,p,q);
+      double pq = dot(p,q);
+      if (pq<=0.0)
+        break;
+      float alpha = (float)(rr/pq);
+      saxpy( alpha,p,z);
+      saxpy(-alpha,q,r);
+      double rrold = rr;
+      rr = dot(r,r);
+      float beta = (float)(rr/rrold);
+      int m = p.length;
+      int n1 = p[0].length;
+      for (int k2=0; k2<m; ++k2)
+        for (int i1=0; i1<n1; ++i1)
+          p[k2][i1] = r[k2][i1]+beta*p[k2][i1];
+    }
+    copy(z,r);
+    smooth(sb,r);
+  }
+
+  // Computes q = (S'(D-cI)S+cI)p.
+  private static void applyA(SolverBuffers sb, float[][] p, float[][] q) {
+    float sc = 0.1f;
+    float[][] d = sb.d;
+    int m = p.length;
+    int n1 = p[0].length;
+    copy(p,q);
+    smooth(sb,q);
+    for (int k2=0; k2<m; ++k2)
+      for (int i1=0; i1<n1; ++i1)
+        q[k2][i1] *= d[k2][i1]-sc;
+    smooth(sb,q);
+    saxpy(sc,p,q);
+  }
+
+  // Shaping smoothing in time and, if traces are solved jointly, along 
+  // the inline. Both smoothings are symmetric and commute, so S' = S.
+  private static void smooth(SolverBuffers sb, float[][] x) {
+    if (sb.rf1!=null) 
+      sb.rf1.apply1(x,x);
+    if (sb.rf2!=null && x.length>1) 
+      sb.rf2.apply2(x,x);
+  }
+
+  private static double dot(float[][] x, float[][] y) {
+    int m = x.length;
+    int n1 = x[0].length;
+    double s = 0.0;
+    for (int k2=0; k2<m; ++k2)
+      for (int i1=0; i1<n1; ++i1)
+        s += x[k2][i1]*y[k2][i1];
+    return s;
+  }
+
+  private static void saxpy(float a, float[][] x, float[][] y) {
+    int m = x.length;
+    int n1 = x[0].length;
+    for (int k2=0; k2<m; ++k2)
+      for (int i1=0; i1<n1; ++i1)
+        y[k2][i1] += a*x[k2][i1];
+  }
+
   // Conjugate-gradient operators.
   private static class A2 implements CgSolver.A {
     A2(Smoother2 s2, int dir, float w1, float[][] wp, double[] s, float[] a) {
@@ -421,4 +653,5 @@ public class LocalSimilarity {
   private float _sigma2 = 10.0f; // precon smoothing extent for 2nd dim
   private float _small = 0.001f; // stop CG iterations if residuals small
   private int _niter = 200; // maximum number of CG iterations
+  private float _sigmaL = 0.0f; // lateral smoothing for joint solves
 }
@@ -34,6 +34,14 @@ public class UnfaultS {
     _d = d;
   }
 
+  /**
+   * Sets the method used to interpolate images when applying shifts.
+   * @param method the interpolation method; default is 8-point sinc.
+   */
+  public void setInterpolation(ShiftWarper.Method method) {
+    _method = method;
+  }
+
   /**
    * Estimates unfault shift vectors in current coordinates for a 3D image.
    * @param sp screen points on faults.
@@ -129,21 +137,20 @@ public class UnfaultS {
   public void applyShifts(
     float[][][][] r, float[][][] f, float[][][] g)
   {
-    final int n1 = f[0][0].length;
-    final int n2 = f[0].length;
-    final int n3 = f.length;
-    final float[][][] ff = f;
-    final float[][][] gf = g;
-    final float[][][] r1 = r[0], r2 = r[1], r3 = r[2];
-    final SincInterpolator si = new SincInterpolator();
-    Parallel.loop(n3,new Parallel.LoopInt() {
-    public void compute(int i3) {
-      for (int i2=0; i2<n2; ++i2)
-        for (int i1=0; i1<n1; ++i1)
-          gf[i3][i2][i1] = si.interpolate(
-            n1,1.0,0.0,n2,1.0,0.0,n3,1.0,0.0,
-            ff,i1+r1[i3][i2][i1],i2+r2[i3][i2][i1],i3+r3[i3][i2][i1]);
-    }});
+    new ShiftWarper(_method).apply(r[0],r[1],r[2],f,g);
+  }
+
+  /**
+   * Compute multiple unfaulted images with the same shifts.
+   * Interpolation stencils are computed once and used for all images.
+   * @param r input array {r1,r2,r3} of shifts.
+   * @param f input array {f1,f2,...} of images.
+   * @param g output array {g1,g2,...} of shifted images.
+   */
+  public void applyShifts(
+    float[][][][] r, float[][][][] f, float[][][][] g)
+  {
+    new ShiftWarper(_method).apply(r[0],r[1],r[2],f,g);
   }
 
   /**
@@ -214,6 +221,7 @@ public class UnfaultS {
   private float _sigma2 = 6.0f; // half-width of smoother in 2nd dimension
   private float _small = 0.010f; // stop CG iterations if residuals are small
   private int _inner = 100; // maximum number of inner CG iterations
+  private ShiftWarper.Method _method = ShiftWarper.Method.SINC8;
 
 
 
@@ -0,0 +1,143 @@
+/** Banded matrix solver for many systems at once.
+ * Factors and solves m symmetric banded systems, all with the same size
+ * and bandwidth, as does {@link BandedMatrixSolver} for one system.
+ * Arrays are laid out band-major and interleaved by system, so that
+ * element k of system j is x[k][j]. Innermost loops are then over
+ * contiguous and independent systems, and systems are split into blocks
+ * that are factored and solved in parallel.
+ * @author Xinming Wu
+ * @version 2016.12.19
+ */
+
+package pp;
+
+import edu.mines.jtk.util.*;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+public class BandedMatrixBatchSolver {
+  int n, band, m;
+  float[][] d;
+  float[][][] o;
+
+  /**
+   * Constructs a solver for m systems.
+   * @param n number of equations in each system.
+   * @param band number of off-diagonals.
+   * @param m number of systems.
+   */
+  public BandedMatrixBatchSolver (int n, int band, int m) {
+    this.n = n;
+    this.band = band;
+    this.m = m;
+    this.d = new float[n][m];
+    this.o = new float[band][][];
+    for (int i=0; i<band; i++) {
+      this.o[i] = new float[n-i-1][m];
+    }
+  }
+
+  /**
+   * Sets the number of systems in each block factored or solved by
+   * one thread.
+   * @param mb number of systems per block; default is 64.
+   */
+  public void setBlockSize(int mb) {
+    Check.argument(mb>0,"mb>0");
+    _mb = mb;
+  }
+
+  /**
+   * Factors all systems.
+   * @param diag array[n][m] of diagonals.
+   * @param offd array[band][n][m] of off-diagonals.
+   */
+  public void define(final float[][] diag, final float[][][] offd) {
+    Parallel.loop(nblock(),new Parallel.LoopInt() {
+    public void compute(int ib) {
+      int j0 = ib*_mb;
+      define(j0,min(j0+_mb,m),diag,offd);
+    }});
+  }
+
+  /**
+   * Solves all systems in place.
+   * @param b input/output array[n][m] of right-hand sides and solutions.
+   */
+  public void solve(final float[][] b) {
+    Parallel.loop(nblock(),new Parallel.LoopInt() {
+    public void compute(int ib) {
+      int j0 = ib*_mb;
+      solve(j0,min(j0+_mb,m),b);
+    }});
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private int _mb = 64; // number of systems per block
+
+  private int nblock() {
+    return (m+_mb-1)/_mb;
+  }
+
+  private void define(int j0, int j1, float[][] diag, float[][][] offd) {
+    for (int k=0; k<n; k++) {
+      float[] dk = d[k];
+      float[] fk = diag[k];
+      for (int j=j0; j<j1; j++)
+        dk[j] = fk[j];
+      int m1 = min(k,band);
+      for (int mm=0; mm<m1; mm++) {
+        int km = k-mm-1;
+        float[] dkm = d[km];
+        float[] okm = o[mm][km];
+        for (int j=j0; j<j1; j++)
+          dk[j] -= okm[j]*okm[j]*dkm[j];
+      }
+      int n1 = min(n-k-1,band);
+      for (int i=0; i<n1; i++) {
+        float[] oik = o[i][k];
+        float[] gk = offd[i][k];
+        for (int j=j0; j<j1; j++)
+          oik[j] = gk[j];
+        m1 = min(k,band-i-1);
+        for (int mm=0; mm<m1; mm++) {
+          int km = k-mm-1;
+          float[] dkm = d[km];
+          float[] omk = o[mm    ][km];
+          float[] opk = o[i+mm+1][km];
+          for (int j=j0; j<j1; j++)
+            oik[j] -= omk[j]*opk[j]*dkm[j];
+        }
+        for (int j=j0; j<j1; j++)
+          oik[j] /= dk[j];
+      }
+    }
+  }
+
+  private void solve(int j0, int j1, float[][] b) {
+    for (int k=1; k<n; k++) {
+      float[] bk = b[k];
+      int m1 = min(k,band);
+      for (int mm=0; mm<m1; mm++) {
+        float[] ok = o[mm][k-mm-1];
+        float[] bm = b[k-mm-1];
+        for (int j=j0; j<j1; j++)
+          bk[j] -= ok[j]*bm[j];
+      }
+    }
+    for (int k=n-1; k>=0; k--) {
+      float[] bk = b[k];
+      float[] dk = d[k];
+      for (int j=j0; j<j1; j++)
+        bk[j] /= dk[j];
+      int m1 = min(n-k-1,band);
+      for (int mm=0; mm<m1; mm++) {
+        float[] ok = o[mm][k];
+        float[] bm = b[k+mm+1];
+        for (int j=j0; j<j1; j++)
+          bk[j] -= ok[j]*bm[j];
+      }
+    }
+  }
+}
@@ -0,0 +1,283 @@
+/****************************************************************************
+Copyright (c) 2016, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package pp;
+
+import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.util.*;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * Predictive painting of 3D images from one or more seed traces.
+ * Plane-wave prediction, as in {@link PredictivePaint2}, spreads the
+ * times of a seed trace along inline and crossline slopes to paint a
+ * relative geologic time volume.
+ * <p>
+ * For each seed trace at (k2,k3), times are first predicted along the
+ * line i2 = k2, using slopes p3. Times for each of those traces are then
+ * predicted along lines with constant i3, using slopes p2. Those lines
+ * are independent, and are painted together, one step in i2 at a time.
+ * For each step, the banded systems for all traces are interleaved and
+ * solved as one batch with a {@link BandedMatrixBatchSolver}. Times painted
+ * from multiple seeds are blended with weights that decrease with
+ * distance from each seed.
+ *
+ * @author Xinming Wu, Colorado School of Mines
+ * @version 2016.12.18
+ */
+public class PredictivePaint3 {
+
+  /**
+   * Constructs a painter.
+   * @param ord accuracy order of plane-wave prediction.
+   * @param eps regularization of plane-wave prediction.
+   */
+  public PredictivePaint3(int ord, float eps) {
+    _ord = ord;
+    _eps = eps;
+  }
+
+  /**
+   * Paints times from one seed trace.
+   * @param s1 sampling of 1st dimension, used for times of the seed.
+   * @param k2 index in 2nd dimension of the seed trace.
+   * @param k3 index in 3rd dimension of the seed trace.
+   * @param p2 array of slopes in 2nd dimension.
+   * @param p3 array of slopes in 3rd dimension.
+   * @return array of painted times.
+   */
+  public float[][][] paint(
+    Sampling s1, int k2, int k3, float[][][] p2, float[][][] p3)
+  {
+    return paint(s1,new int[]{k2},new int[]{k3},p2,p3);
+  }
+
+  /**
+   * Paints times from multiple seed traces. Times painted from each seed
+   * are blended with weights 1/(1+d*d), where d is the lateral distance,
+   * in samples, from the seed trace.
+   * @param s1 sampling of 1st dimension, used for times of all seeds.
+   * @param k2s array of indices in 2nd dimension of seed traces.
+   * @param k3s array of indices in 3rd dimension of seed traces.
+   * @param p2 array of slopes in 2nd dimension.
+   * @param p3 array of slopes in 3rd dimension.
+   * @return array of painted times.
+   */
+  public float[][][] paint(
+    Sampling s1, final int[] k2s, final int[] k3s,
+    final float[][][] p2, final float[][][] p3)
+  {
+    Check.argument(k2s.length==k3s.length,"k2s.length==k3s.length");
+    final int ns = k2s.length;
+    final int n3 = p2.length;
+    final int n2 = p2[0].length;
+    final int n1 = p2[0][0].length;
+    final float[] time = new float[n1];
+    float f1 = (float)s1.getFirst();
+    float d1 = (float)s1.getDelta();
+    for (int i1=0; i1<n1; ++i1) {time[i1]=f1+d1*i1;}
+    final Parallel.Unsafe<Painter> ptu = new Parallel.Unsafe<Painter>();
+
+    // Times for traces on the line i2 = k2 of each seed.
+    final float[][][] us = new float[ns][n3][];
+    Parallel.loop(ns,new Parallel.LoopInt() {
+    public void compute(int is) {
+      Painter pt = painter(ptu,n1);
+      int k2 = k2s[is];
+      int k3 = k3s[is];
+      float[][] u = us[is];
+      float[] trace = copy(time);
+      u[k3] = copy(trace);
+      for (int i3=k3-1; i3>=0; --i3) {
+        predict(pt,false,trace,p3[i3][k2]);
+        u[i3] = copy(trace);
+      }
+      trace = copy(u[k3]);
+      for (int i3=k3+1; i3<n3; ++i3) {
+        predict(pt,true,trace,p3[i3-1][k2]);
+        u[i3] = copy(trace);
+      }
+    }});
+
+    // Times for all traces, painted one step in i2 at a time for all i3,
+    // with one batch of banded systems solved for each step.
+    final float[][][] u = new float[n3][n2][n1];
+    final float[][] ws = new float[n3][n2];
+    Wavefront wf = new Wavefront(n1,n3);
+    float[][] traces = new float[n3][n1];
+    for (int is=0; is<ns; ++is) {
+      int k2 = k2s[is];
+      int k3 = k3s[is];
+      for (int i3=0; i3<n3; ++i3)
+        copy(us[is][i3],traces[i3]);
+      accumulate(k2,k2,k3,traces,u,ws);
+      for (int i2=k2-1; i2>=0; --i2) {
+        wf.predict(false,i2,p2,traces);
+        accumulate(i2,k2,k3,traces,u,ws);
+      }
+      for (int i3=0; i3<n3; ++i3)
+        copy(us[is][i3],traces[i3]);
+      for (int i2=k2+1; i2<n2; ++i2) {
+        wf.predict(true,i2-1,p2,traces);
+        accumulate(i2,k2,k3,traces,u,ws);
+      }
+    }
+    Parallel.loop(n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      for (int i2=0; i2<n2; ++i2)
+        mul(1.0f/ws[i3][i2],u[i3][i2],u[i3][i2]);
+    }});
+    return u;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private int _ord = 1;        // accuracy order
+  private float _eps = 0.01f;  // regularization
+
+  // Bands, solver and work arrays owned by one thread, and reused for all
+  // traces that thread predicts.
+  private static class Painter {
+    PdMatrix w;
+    BandedMatrixSolver bms;
+    float[] diag,tmp,t;
+    float[][] offd;
+    Painter(int n1, int ord) {
+      w = new PdMatrix(n1,ord);
+      bms = new BandedMatrixSolver(n1,2*ord);
+      diag = new float[n1];
+      tmp = new float[n1];
+      t = new float[n1];
+      offd = new float[2*ord][n1];
+    }
+  }
+
+  private Painter painter(Parallel.Unsafe<Painter> ptu, int n1) {
+    Painter pt = ptu.get();
+    if (pt==null)
+      ptu.set(pt=new Painter(n1,_ord));
+    return pt;
+  }
+
+  private static float weight(float d2, float d3) {
+    return 1.0f/(1.0f+d2*d2+d3*d3);
+  }
+
+  // Accumulates weighted traces painted from a seed at (k2,k3) for all i3
+  // and one i2.
+  private static void accumulate(
+    final int i2, final int k2, final int k3,
+    final float[][] traces, final float[][][] u, final float[][] ws)
+  {
+    final int n3 = traces.length;
+    final int n1 = traces[0].length;
+    Parallel.loop(n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      float w = weight(i2-k2,i3-k3);
+      float[] t = traces[i3];
+      float[] ui = u[i3][i2];
+      for (int i1=0; i1<n1; ++i1)
+        ui[i1] += w*t[i1];
+      ws[i3][i2] += w;
+    }});
+  }
+
+  // Predicts traces for all i3 in one step of i2. Bands for all traces are
+  // interleaved, so that all systems are factored and solved as one batch.
+  private class Wavefront {
+    int n1,n3;
+    PdMatrix[] w; // filters for all traces
+    BandedMatrixBatchSolver bms;
+    float[][] diag,b; // arrays[n1][n3] of diagonals and right-hand sides
+    float[][][] offd; // array[2*ord][n1][n3] of off-diagonals
+    Parallel.Unsafe<Painter> ptu = new Parallel.Unsafe<Painter>();
+    Wavefront(int n1, int n3) {
+      this.n1 = n1;
+      this.n3 = n3;
+      w = new PdMatrix[n3];
+      for (int i3=0; i3<n3; ++i3)
+        w[i3] = new PdMatrix(n1,_ord);
+      bms = new BandedMatrixBatchSolver(n1,2*_ord,n3);
+      diag = new float[n1][n3];
+      b = new float[n1][n3];
+      offd = new float[2*_ord][n1][n3];
+    }
+    void predict(
+      final boolean forw, final int i2,
+      final float[][][] p2, final float[][] traces)
+    {
+      final int nb = 2*_ord;
+      Parallel.loop(n3,new Parallel.LoopInt() {
+      public void compute(int i3) {
+        Painter pt = painter(ptu,n1);
+        zero(pt.offd);
+        regularization(pt.diag,pt.offd);
+        PdMatrix.define(forw,w[i3],p2[i3][i2],pt.diag,pt.offd);
+        float[] t = traces[i3];
+        for (int i1=0; i1<n1; ++i1) {
+          diag[i1][i3] = pt.diag[i1];
+          b[i1][i3] = t[i1];
+          for (int ib=0; ib<nb; ++ib)
+            offd[ib][i1][i3] = pt.offd[ib][i1];
+        }
+      }});
+      bms.define(diag,offd);
+      bms.solve(b);
+      final float eps = _eps*_eps;
+      Parallel.loop(n3,new Parallel.LoopInt() {
+      public void compute(int i3) {
+        Painter pt = painter(ptu,n1);
+        float[] t = pt.t;
+        for (int i1=0; i1<n1; ++i1)
+          t[i1] = b[i1][i3];
+        float[] trace = traces[i3];
+        PdMatrix.set(true,w[i3],trace,t,pt.tmp);
+        trace[0] += eps*t[0];
+        trace[1] += eps*t[1];
+        trace[n1-2] += eps*t[n1-2];
+        trace[n1-1] += eps*t[n1-1];
+      }});
+    }
+  }
+
+  // Predicts the next trace, as for PredictivePaint2.predict with adj true,
+  // but reusing the bands and solver of one thread. The trace is copied
+  // before the adjoint filter is applied, so that the filter input and
+  // output are not the same array.
+  private void predict(
+    Painter pt, boolean forw, float[] trace, float[] pp)
+  {
+    int n1 = pp.length;
+    float[] diag = pt.diag;
+    float[][] offd = pt.offd;
+    zero(offd);
+    regularization(diag,offd);
+    PdMatrix.define(forw,pt.w,pp,diag,offd);
+    BandedMatrixSolver.define(pt.bms,diag,offd);
+    BandedMatrixSolver.solve(pt.bms,trace);
+    copy(trace,pt.t);
+    PdMatrix.set(true,pt.w,trace,pt.t,pt.tmp);
+    float eps = _eps*_eps;
+    trace[0] += eps*pt.t[0];
+    trace[1] += eps*pt.t[1];
+    trace[n1-2] += eps*pt.t[n1-2];
+    trace[n1-1] += eps*pt.t[n1-1];
+  }
+
+  private void regularization(float[] diag, float[][] offd) {
+    int n1 = diag.length;
+    float eps = _eps*_eps;
+    for (int i1=0; i1<n1; ++i1) {
+      diag[i1]    =  6.0f*eps;
+      offd[1][i1] =       eps;
+      offd[0][i1] = -4.0f*eps;
+    }
+    diag[0] = diag[n1-1] = eps+eps;
+    diag[1] = diag[n1-2] = eps+5f*eps;
+    offd[0][0] = offd[0][n1-2] = -2f*eps;
+  }
+}
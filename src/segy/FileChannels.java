@@ -0,0 +1,58 @@
+/****************************************************************************
+Copyright (c) 2016, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+
+package segy;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * Positional reads and writes of byte buffers for SEG-Y files.
+ * Positional reads and writes do not change the position of a channel,
+ * so that one channel may be shared by threads that read or write
+ * different parts of a file.
+ *
+ * @author Xinming Wu, Colorado School of Mines
+ * @version 2016.12.16
+ */
+class FileChannels {
+
+  /**
+   * Reads bytes until the buffer is full.
+   * @param fc the file channel.
+   * @param bb the buffer; bytes are read from its position to its limit.
+   * @param pos the file position of the first byte read.
+   * @throws EOFException if the end of file is reached first.
+   */
+  static void readFully(FileChannel fc, ByteBuffer bb, long pos)
+    throws IOException
+  {
+    while (bb.hasRemaining()) {
+      int nb = fc.read(bb,pos);
+      if (nb<0)
+        throw new EOFException("unexpected end of file");
+      pos += nb;
+    }
+  }
+
+  /**
+   * Writes all bytes remaining in a buffer.
+   * @param fc the file channel.
+   * @param bb the buffer; bytes are written from its position to its limit.
+   * @param pos the file position of the first byte written.
+   */
+  static void writeFully(FileChannel fc, ByteBuffer bb, long pos)
+    throws IOException
+  {
+    while (bb.hasRemaining())
+      pos += fc.write(bb,pos);
+  }
+
+  private FileChannels() {
+  }
+}
@@ -1,5 +1,8 @@
 package segy;
 
+import java.nio.*;
+import edu.mines.jtk.util.Parallel;
+
 public class IbmIeee {
   public static void shortToFloat(short[] s, float[] f) {
     int n = s.length;
@@ -11,11 +14,128 @@ public class IbmIeee {
     for (int i=0; i<n; ++i)
       f[i] = ieeeToFloat(ieee[i]);
   }
-  public static void ibmToFloat(int[] ibm, float[] f) {
+  public static void ibmToFloat(final int[] ibm, final float[] f) {
     int n = ibm.length;
-    for (int i=0; i<n; ++i)
-      f[i] = ibmToFloat(ibm[i]);
+    if (n<NPAR) {
+      ibmToFloat(ibm,0,f,0,n);
+    } else {
+      Parallel.loop(0,n,NCHUNK,new Parallel.LoopInt() {
+      public void compute(int j) {
+        ibmToFloat(ibm,j,f,j,Math.min(NCHUNK,ibm.length-j));
+      }});
+    }
+  }
+  public static void floatToIbm(final float[] f, final int[] ibm) {
+    int n = f.length;
+    if (n<NPAR) {
+      floatToIbm(f,0,ibm,0,n);
+    } else {
+      Parallel.loop(0,n,NCHUNK,new Parallel.LoopInt() {
+      public void compute(int j) {
+        floatToIbm(f,j,ibm,j,Math.min(NCHUNK,f.length-j));
+      }});
+    }
+  }
+
+  /**
+   * Converts IBM floats in a byte buffer to IEEE floats.
+   * Reads f.length ints, in the byte order of the buffer, beginning at
+   * the current position, which is advanced past the ints read.
+   * @param bb input buffer of IBM floats.
+   * @param f output array of IEEE floats.
+   */
+  public static void ibmToFloat(ByteBuffer bb, float[] f) {
+    ibmToFloat(bb.asIntBuffer(),f);
+    bb.position(bb.position()+4*f.length);
+  }
+
+  /**
+   * Converts IBM floats in an int buffer to IEEE floats.
+   * Reads f.length ints beginning at the current position, which is
+   * advanced past the ints read.
+   * @param ib input buffer of IBM floats.
+   * @param f output array of IEEE floats.
+   */
+  public static void ibmToFloat(final IntBuffer ib, final float[] f) {
+    final int n = f.length;
+    final int p = ib.position();
+    if (ib.hasArray()) {
+      int[] ibm = ib.array();
+      int j = ib.arrayOffset()+p;
+      if (n<NPAR) {
+        ibmToFloat(ibm,j,f,0,n);
+      } else {
+        final int[] ibmf = ibm;
+        final int jf = j;
+        Parallel.loop(0,n,NCHUNK,new Parallel.LoopInt() {
+        public void compute(int i) {
+          ibmToFloat(ibmf,jf+i,f,i,Math.min(NCHUNK,n-i));
+        }});
+      }
+    } else if (n<NPAR) {
+      int[] ibm = new int[n];
+      ib.get(ibm);
+      ibmToFloat(ibm,0,f,0,n);
+    } else {
+      final Parallel.Unsafe<int[]> bu = new Parallel.Unsafe<int[]>();
+      Parallel.loop(0,n,NCHUNK,new Parallel.LoopInt() {
+      public void compute(int i) {
+        int[] ibm = bu.get();
+        if (ibm==null)
+          bu.set(ibm=new int[NCHUNK]);
+        int m = Math.min(NCHUNK,n-i);
+        IntBuffer ibi = ib.duplicate();
+        ibi.position(p+i);
+        ibi.get(ibm,0,m);
+        ibmToFloat(ibm,0,f,i,m);
+      }});
+    }
+    ib.position(p+n);
+  }
+
+  /**
+   * Converts IEEE floats to IBM floats in a byte buffer.
+   * Writes f.length ints, in the byte order of the buffer, beginning at
+   * the current position, which is advanced past the ints written.
+   * @param f input array of IEEE floats.
+   * @param bb output buffer of IBM floats.
+   */
+  public static void floatToIbm(float[] f, ByteBuffer bb) {
+    floatToIbm(f,bb.asIntBuffer());
+    bb.position(bb.position()+4*f.length);
+  }
+
+  /**
+   * Converts IEEE floats to IBM floats in an int buffer.
+   * Writes f.length ints beginning at the current position, which is
+   * advanced past the ints written.
+   * @param f input array of IEEE floats.
+   * @param ib output buffer of IBM floats.
+   */
+  public static void floatToIbm(final float[] f, final IntBuffer ib) {
+    final int n = f.length;
+    final int p = ib.position();
+    if (n<NPAR) {
+      int[] ibm = new int[n];
+      floatToIbm(f,0,ibm,0,n);
+      ib.put(ibm);
+    } else {
+      final Parallel.Unsafe<int[]> bu = new Parallel.Unsafe<int[]>();
+      Parallel.loop(0,n,NCHUNK,new Parallel.LoopInt() {
+      public void compute(int i) {
+        int[] ibm = bu.get();
+        if (ibm==null)
+          bu.set(ibm=new int[NCHUNK]);
+        int m = Math.min(NCHUNK,n-i);
+        floatToIbm(f,i,ibm,0,m);
+        IntBuffer ibi = ib.duplicate();
+        ibi.position(p+i);
+        ibi.put(ibm,0,m);
+      }});
+    }
+    ib.position(p+n);
   }
+
   public static float ieeeToFloat(int ieee) {
     return Float.intBitsToFloat(ieee);
   }
@@ -60,6 +180,134 @@ public class IbmIeee {
     */
     return Float.intBitsToFloat(ieee);
   }
+  public static int floatToIbm(float f) {
+    // 1) Extract sign bit, exponent, and mantissa with implicit high bit.
+    // 2) Convert exponent: base-2 exponent e2 for a mantissa in [1/2,1)
+    //    becomes base-16 exponent ceil(e2/4), biased by 64
+    // 3) Shift mantissa right by 4*ceil(e2/4)-e2 bits, with rounding
+    // 4) Put sign, exponent and mantissa bits back in number
+    int ieee = Float.floatToRawIntBits(f);
+    int s = 0x80000000&ieee; // sign bit
+    int e = (ieee>>>23)&0xff; // exponent
+    int m = 0x007fffff&ieee; // mantissa
+    if (e==255) // infinity or NaN becomes largest IBM float
+      return s|0x7fffffff;
+    if (e==0) { // zero or denormal
+      if (m==0)
+        return 0;
+      e = 1;
+      while ((m&0x00800000)==0) {
+        m <<= 1;
+        --e;
+      }
+    } else {
+      m |= 0x00800000;
+    }
+    int e2 = e-126; // = e-127+1, for mantissa in [1/2,1)
+    int e16 = (e2+3)>>2; // = ceil(e2/4)
+    int shift = 4*e16-e2;
+    if (shift>0) {
+      m = (m+(1<<(shift-1)))>>shift;
+      if (m==0x01000000) {
+        m >>= 4;
+        ++e16;
+      }
+    }
+    return s|((e16+64)<<24)|m;
+  }
+  /**
+   * Checks bulk conversions against scalar conversions for all 2^32 bit
+   * patterns, and prints times for bulk and scalar conversions.
+   */
+  public static void main(String[] args) {
+    int n = 1<<24;
+    int[] ibm = new int[n];
+    int[] ibms = new int[n];
+    float[] f = new float[n];
+    long nbad = 0;
+    double tbulk = 0.0, tscalar = 0.0;
+    for (long k=0; k<(1L<<32); k+=n) {
+      for (int i=0; i<n; ++i)
+        ibm[i] = (int)(k+i);
+      long t0 = System.nanoTime();
+      ibmToFloat(ibm,f);
+      long t1 = System.nanoTime();
+      for (int i=0; i<n; ++i) {
+        float fs = ibmToFloat(ibm[i]);
+        if (Float.floatToRawIntBits(fs)!=Float.floatToRawIntBits(f[i]))
+          ++nbad;
+      }
+      long t2 = System.nanoTime();
+      for (int i=0; i<n; ++i)
+        f[i] = Float.intBitsToFloat((int)(k+i));
+      floatToIbm(f,ibm);
+      for (int i=0; i<n; ++i) {
+        if (floatToIbm(f[i])!=ibm[i])
+          ++nbad;
+      }
+      tbulk += (t1-t0)*1.0e-9;
+      tscalar += (t2-t1)*1.0e-9;
+    }
+    System.out.println("mismatches = "+nbad);
+    System.out.println("ibm to ieee: bulk = "+tbulk+" s, scalar = "+tscalar+
+      " s (scalar time includes comparisons)");
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int NPAR = 1<<16; // min length for parallel loops
+  private static final int NCHUNK = 1<<14; // length of chunks in loops
+
+  // Branch-free IBM to IEEE conversion, with the same results as the
+  // scalar method above. Leading zeros in the mantissa are counted with
+  // an intrinsic instead of a loop, and clipping is done with masks.
+  private static void ibmToFloat(
+    int[] ibm, int jibm, float[] f, int jf, int n)
+  {
+    for (int i=0; i<n; ++i) {
+      int b = ibm[jibm+i];
+      int s = 0x80000000&b; // sign bit
+      int m = 0x00ffffff&b; // mantissa
+      int z = Integer.numberOfLeadingZeros(m)-8; // 24, if m is zero
+      int e = ((b>>>22)&0x1fc)-130-z; // = ((e>>24)-64)*4-1+127-z
+      int ieee = s|(e<<23)|((m<<z)&0x007fffff);
+      int over = (254-e)>>31; // all ones, if e>=255
+      int zero = ((e-1)|(m-1))>>31; // all ones, if e<=0 or m==0
+      ieee = (ieee&~over)|((s|0x7f7fffff)&over);
+      f[jf+i] = Float.intBitsToFloat(ieee&~zero);
+    }
+  }
+
+  // Branch-free IEEE to IBM conversion, with the same results as the
+  // scalar method above.
+  private static void floatToIbm(
+    float[] f, int jf, int[] ibm, int jibm, int n)
+  {
+    for (int i=0; i<n; ++i) {
+      int b = Float.floatToRawIntBits(f[jf+i]);
+      int s = 0x80000000&b; // sign bit
+      int e = (b>>>23)&0xff; // exponent
+      int m = 0x007fffff&b; // mantissa
+      int d = (e-1)>>31; // all ones, if zero or denormal
+      int z = (Integer.numberOfLeadingZeros(m)-8)&d; // normalizing shift
+      m = (m<<z)|(0x00800000&~d);
+      e += (1&d)-z;
+      int e2 = e-126;
+      int e16 = (e2+3)>>2;
+      int shift = 4*e16-e2;
+      m = (m+((1<<shift)>>1))>>shift;
+      int c = m>>>24; // one, if rounding carried into a new hex digit
+      m >>= 4*c;
+      e16 += c;
+      int r = s|((e16+64)<<24)|m;
+      int inf = (254-e)>>31; // all ones, if infinity or NaN
+      int zero = ((b&0x7fffffff)-1)>>31; // all ones, if zero
+      r = (r&~inf)|((s|0x7fffffff)&inf);
+      ibm[jibm+i] = r&~zero;
+    }
+  }
+
   private static float ibmToFloatSu(int ibm) {
     int fconv = ((ibm    )     )<<24 |
                 ((ibm>> 8)&0xff)<<16 |
@@ -61,6 +61,7 @@ public class SegyImage {
   public SegyImage(String fileName, ByteOrder byteOrder) {
     _fileName = fileName;
     _byteOrder = byteOrder;
+    _indexName = fileName+".idx";
     openArrayFile();
   }
 
@@ -308,6 +309,22 @@ public class SegyImage {
     _i3hi = (inlineByte-1)/4;
   }
 
+  /**
+   * Sets the name of the index file for trace header information.
+   * When first needed, grid indices and coordinates for all traces are
+   * read from this index file, if it exists and is valid for the SEG-Y
+   * file and the bytes set for inline and xline numbers. Otherwise,
+   * they are read from all trace headers, and the index file is written,
+   * so that reopening the SEG-Y file need not read those headers again.
+   * <p>
+   * The default index file name is the SEG-Y file name with the suffix
+   * ".idx". If the name is null, no index file is read or written.
+   * @param indexName name of the index file; null, for none.
+   */
+  public void setIndexFileName(String indexName) {
+    _indexName = indexName;
+  }
+
   /**
    * Returns a guess for the format code, if a guess is possible.
    * Currently attempts to guess only if either IBM or IEEE floats.
@@ -881,6 +898,7 @@ public class SegyImage {
   private boolean _infoTH; // true, if trace header info has been loaded
   private int _i2hi = 48; // index in trace header of integer xline number
   private int _i3hi = 47; // index in trace header of integer iline number
+  private String _indexName; // name of trace index file; null, if none
 
   private static String[] _binaryHeaderFields = {
     "3201-3204: job identification number",
@@ -1127,6 +1145,19 @@ public class SegyImage {
   private long headerOffset(int i) {
     return 3600L+i*(240L+_bytesPerSample*_n1);
   }
+
+  // For writers that copy file and trace headers from this image.
+  String getFileName() {
+    return _fileName;
+  }
+  ByteOrder getByteOrder() {
+    return _byteOrder;
+  }
+  long getHeaderOffset(int i) {
+    loadBinaryHeaderInfo();
+    checkTraceIndex(i);
+    return headerOffset(i);
+  }
   private void loadTraceHeaderInfo() {
     if (_infoTH) 
       return;
@@ -1142,50 +1173,34 @@ public class SegyImage {
     _ymax = -Double.MAX_VALUE;
     double uxy = 0.001*(_feet?0.3048:1.0);
 
-    // Read indices (i2,i3) and coordinates (x,y) from trace headers.
-    _i2s = new int[_ntrace];
-    _i3s = new int[_ntrace];
-    _xs = new double[_ntrace];
-    _ys = new double[_ntrace];
-    try {
-      _af.seek(3600); // skip text and binary file headers
-      int[] hi = new int[240/4]; // 240-byte trace header as 4-byte ints
-      System.out.print("reading "+_ntrace+" trace headers ");
-      for (int itrace=0; itrace<_ntrace; ++itrace) {
-        if ((itrace%(_ntrace/10))==0) {
-          int perc = (int)(itrace*100.0/_ntrace);
-          System.out.print(".");
-        }
-        _af.readInts(hi); // read the trace header
-        _af.skipBytes(_n1*_bytesPerSample); // skip the trace samples
-        double sxy = uxy; // scale factor for x and y
-        int pxy = l2(hi[17]); // scale factor is a short
-        if (pxy>0) // if positive, multiply
-          sxy *= pxy;
-        else if (pxy<0) // if negative, divide
-          sxy /= -pxy;
-        double x = hi[45]*sxy; // x coordinate
-        double y = hi[46]*sxy; // y coordinate
-        int i2 = hi[_i2hi]; // xline number
-        if (i2==0) // if no xline number, ... 
-          i2 = hi[5]; // try the CDP number
-        int i3 = hi[_i3hi]; // iline number
-        if (x<_xmin) _xmin = x;
-        if (x>_xmax) _xmax = x;
-        if (y<_ymin) _ymin = y;
-        if (y>_ymax) _ymax = y;
-        if (i2<_i2min) _i2min = i2;
-        if (i2>_i2max) _i2max = i2;
-        if (i3<_i3min) _i3min = i3;
-        if (i3>_i3max) _i3max = i3;
-        _xs[itrace] = x;
-        _ys[itrace] = y;
-        _i2s[itrace] = i2;
-        _i3s[itrace] = i3;
-      }
-      System.out.println(" done");
-    } catch (IOException e) {
-      throw new RuntimeException("cannot read trace headers");
+    // Read indices (i2,i3) and coordinates (x,y) from an index file, if
+    // valid for this SEG-Y file; otherwise, scan them from trace headers
+    // and write the index file, so that they need not be scanned again.
+    SegyTraceIndex sti = new SegyTraceIndex(
+      _fileName,_byteOrder,_ntrace,240L+_bytesPerSample*_n1,
+      _i2hi,_i3hi,uxy);
+    if (_indexName==null || !sti.read(_indexName)) {
+      sti.scan();
+      if (_indexName!=null)
+        sti.write(_indexName);
+    }
+    _i2s = sti.getI2s();
+    _i3s = sti.getI3s();
+    _xs = sti.getXs();
+    _ys = sti.getYs();
+    for (int itrace=0; itrace<_ntrace; ++itrace) {
+      double x = _xs[itrace];
+      double y = _ys[itrace];
+      int i2 = _i2s[itrace];
+      int i3 = _i3s[itrace];
+      if (x<_xmin) _xmin = x;
+      if (x>_xmax) _xmax = x;
+      if (y<_ymin) _ymin = y;
+      if (y>_ymax) _ymax = y;
+      if (i2<_i2min) _i2min = i2;
+      if (i2>_i2max) _i2max = i2;
+      if (i3<_i3min) _i3min = i3;
+      if (i3>_i3max) _i3max = i3;
     }
 
     // Build mapping from grid indices to trace indices. With these
@@ -1306,9 +1321,7 @@ public class SegyImage {
       f[i] = ieeeToFloat(ieee[i]);
   }
   private static void ibmToFloat(int[] ibm, float[] f) {
-    int n = ibm.length;
-    for (int i=0; i<n; ++i)
-      f[i] = ibmToFloat(ibm[i]);
+    IbmIeee.ibmToFloat(ibm,f);
   }
   private static float ieeeToFloat(int ieee) {
     return Float.intBitsToFloat(ieee);
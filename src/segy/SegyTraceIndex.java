@@ -0,0 +1,265 @@
+/****************************************************************************
+Copyright (c) 2016, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+
+package segy;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+import edu.mines.jtk.util.*;
+import static edu.mines.jtk.util.ArrayMath.*;
+import static segy.FileChannels.*;
+
+/**
+ * Grid indices and coordinates for all traces in a SEG-Y file.
+ * For each trace, an index holds the indices (i2,i3) and scaled
+ * coordinates (x,y) read from its trace header.
+ * <p>
+ * An index is either scanned from the trace headers of a SEG-Y file
+ * or read from a sidecar index file written by a previous scan. The
+ * scan reads traces in large contiguous chunks of about 8 MB, so that
+ * reads are sequential, and chunks are scanned in parallel. The index
+ * file is binary and memory-mapped when read. It records the length
+ * and modification time of the SEG-Y file, and all parameters that
+ * determine the values in the index, so that an index file for a
+ * modified SEG-Y file or different parameters is ignored.
+ * <p>
+ * Index file layout, with big-endian byte order: a 64-byte header
+ * containing magic number, version, SEG-Y file length, modification
+ * time, bytes per trace, coordinate units, number of traces, byte
+ * order, and indices in trace headers of xline and iline numbers;
+ * followed by arrays[ntrace] of ints i2 and i3 and doubles x and y.
+ *
+ * @author Xinming Wu, Colorado School of Mines
+ * @version 2016.12.16
+ */
+class SegyTraceIndex {
+
+  /**
+   * Constructs an index for the specified SEG-Y file and parameters.
+   * @param fileName name of the SEG-Y file.
+   * @param order byte order of the SEG-Y file.
+   * @param ntrace number of traces.
+   * @param nbtrace number of bytes per trace, including its header.
+   * @param i2hi index in trace header of integer xline number.
+   * @param i3hi index in trace header of integer iline number.
+   * @param uxy units of coordinates before scaling by trace headers.
+   */
+  SegyTraceIndex(
+    String fileName, ByteOrder order, int ntrace, long nbtrace,
+    int i2hi, int i3hi, double uxy)
+  {
+    File file = new File(fileName);
+    _fileName = fileName;
+    _length = file.length();
+    _mtime = file.lastModified();
+    _order = order;
+    _ntrace = ntrace;
+    _nbtrace = nbtrace;
+    _i2hi = i2hi;
+    _i3hi = i3hi;
+    _uxy = uxy;
+  }
+
+  int[] getI2s() { return _i2s; }
+  int[] getI3s() { return _i3s; }
+  double[] getXs() { return _xs; }
+  double[] getYs() { return _ys; }
+
+  /**
+   * Reads this index from an index file, if valid for the SEG-Y file.
+   * @param indexName name of the index file.
+   * @return true, if read; false, if missing, unreadable or not valid.
+   */
+  boolean read(String indexName) {
+    File file = new File(indexName);
+    if (!file.isFile() || file.length()!=HEADER_SIZE+24L*_ntrace ||
+        8L*_ntrace>Integer.MAX_VALUE)
+      return false;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file,"r");
+      try {
+        FileChannel fc = raf.getChannel();
+        ByteBuffer hb = fc.map(FileChannel.MapMode.READ_ONLY,0,HEADER_SIZE);
+        if (hb.getInt()!=MAGIC || hb.getInt()!=VERSION ||
+            hb.getLong()!=_length || hb.getLong()!=_mtime ||
+            hb.getLong()!=_nbtrace || hb.getDouble()!=_uxy ||
+            hb.getInt()!=_ntrace || hb.getInt()!=orderCode(_order) ||
+            hb.getInt()!=_i2hi || hb.getInt()!=_i3hi)
+          return false;
+        int n = _ntrace;
+        long p = HEADER_SIZE;
+        int[] i2s = new int[n];
+        int[] i3s = new int[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        map(fc,p,4L*n).asIntBuffer().get(i2s); p += 4L*n;
+        map(fc,p,4L*n).asIntBuffer().get(i3s); p += 4L*n;
+        map(fc,p,8L*n).asDoubleBuffer().get(xs); p += 8L*n;
+        map(fc,p,8L*n).asDoubleBuffer().get(ys);
+        _i2s = i2s;
+        _i3s = i3s;
+        _xs = xs;
+        _ys = ys;
+        return true;
+      } finally {
+        raf.close();
+      }
+    } catch (IOException ioe) {
+      return false;
+    }
+  }
+
+  /**
+   * Writes this index to an index file. The file is first written with
+   * a temporary name and then renamed, so that a partially written file
+   * is never read. Failure to write is not an error, because an index
+   * can always be scanned again; in that case no index file is written.
+   * @param indexName name of the index file.
+   * @return true, if written; false, otherwise.
+   */
+  boolean write(String indexName) {
+    if (8L*_ntrace>Integer.MAX_VALUE)
+      return false;
+    File file = new File(indexName);
+    File temp = new File(indexName+".tmp");
+    try {
+      RandomAccessFile raf = new RandomAccessFile(temp,"rw");
+      try {
+        int n = _ntrace;
+        raf.setLength(0);
+        FileChannel fc = raf.getChannel();
+        ByteBuffer hb = ByteBuffer.allocate((int)HEADER_SIZE);
+        hb.putInt(MAGIC).putInt(VERSION);
+        hb.putLong(_length).putLong(_mtime).putLong(_nbtrace);
+        hb.putDouble(_uxy).putInt(_ntrace).putInt(orderCode(_order));
+        hb.putInt(_i2hi).putInt(_i3hi);
+        hb.clear();
+        writeFully(fc,hb,0L);
+        ByteBuffer bb = ByteBuffer.allocate(8*n);
+        bb.asIntBuffer().put(_i2s);
+        bb.limit(4*n);
+        writeFully(fc,bb,HEADER_SIZE);
+        bb.clear();
+        bb.asIntBuffer().put(_i3s);
+        bb.limit(4*n);
+        writeFully(fc,bb,HEADER_SIZE+4L*n);
+        bb.clear();
+        bb.asDoubleBuffer().put(_xs);
+        writeFully(fc,bb,HEADER_SIZE+8L*n);
+        bb.clear();
+        bb.asDoubleBuffer().put(_ys);
+        writeFully(fc,bb,HEADER_SIZE+16L*n);
+      } finally {
+        raf.close();
+      }
+      file.delete();
+      if (temp.renameTo(file))
+        return true;
+    } catch (IOException ioe) {
+    }
+    temp.delete();
+    return false;
+  }
+
+  /**
+   * Scans this index from the trace headers of the SEG-Y file.
+   */
+  void scan() {
+    final int ntrace = _ntrace;
+    final long nbtrace = _nbtrace;
+    final int mtrace = (int)max(1L,min(ntrace,CHUNK_SIZE/nbtrace));
+    final int nchunk = (ntrace+mtrace-1)/mtrace;
+    _i2s = new int[ntrace];
+    _i3s = new int[ntrace];
+    _xs = new double[ntrace];
+    _ys = new double[ntrace];
+    System.out.print("reading "+ntrace+" trace headers ... ");
+    try {
+      RandomAccessFile raf = new RandomAccessFile(_fileName,"r");
+      try {
+        final FileChannel fc = raf.getChannel();
+        final Parallel.Unsafe<ByteBuffer> bbu =
+          new Parallel.Unsafe<ByteBuffer>();
+        Parallel.loop(nchunk,new Parallel.LoopInt() {
+        public void compute(int ichunk) {
+          ByteBuffer bb = bbu.get();
+          if (bb==null) {
+            bb = ByteBuffer.allocate((int)(mtrace*nbtrace)).order(_order);
+            bbu.set(bb);
+          }
+          int jtrace = ichunk*mtrace;
+          int ltrace = min(mtrace,ntrace-jtrace);
+          bb.clear();
+          bb.limit((int)(ltrace*nbtrace));
+          try {
+            readFully(fc,bb,3600L+jtrace*nbtrace);
+          } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+          }
+          for (int ktrace=0; ktrace<ltrace; ++ktrace)
+            scanHeader(bb,(int)(ktrace*nbtrace),jtrace+ktrace);
+        }});
+      } finally {
+        raf.close();
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException("cannot read trace headers",ioe);
+    }
+    System.out.println("done");
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int MAGIC = 0x53594958; // "SYIX"
+  private static final int VERSION = 1;
+  private static final long HEADER_SIZE = 64L;
+  private static final long CHUNK_SIZE = 1L<<23; // bytes per chunk read
+
+  private String _fileName; // name of SEG-Y file
+  private long _length; // length of SEG-Y file, in bytes
+  private long _mtime; // modification time of SEG-Y file
+  private ByteOrder _order; // byte order of SEG-Y file
+  private int _ntrace; // number of traces
+  private long _nbtrace; // number of bytes per trace, including header
+  private int _i2hi; // index in trace header of integer xline number
+  private int _i3hi; // index in trace header of integer iline number
+  private double _uxy; // units of coordinates before scaling
+  private int[] _i2s,_i3s; // arrays[ntrace] of indices i2 and i3
+  private double[] _xs,_ys; // arrays[ntrace] of coordinates x and y
+
+  // Gets indices and coordinates for one trace from its 240-byte header,
+  // which begins at byte offset p in the specified buffer.
+  private void scanHeader(ByteBuffer bb, int p, int itrace) {
+    double sxy = _uxy; // scale factor for x and y
+    int pxy = bb.getShort(p+70); // bytes 71-72: scalar for coordinates
+    if (pxy>0) // if positive, multiply
+      sxy *= pxy;
+    else if (pxy<0) // if negative, divide
+      sxy /= -pxy;
+    int i2 = bb.getInt(p+4*_i2hi); // xline number
+    if (i2==0) // if no xline number, ...
+      i2 = bb.getInt(p+20); // try the CDP number
+    int i3 = bb.getInt(p+4*_i3hi); // iline number
+    _xs[itrace] = bb.getInt(p+180)*sxy; // bytes 181-184: x coordinate
+    _ys[itrace] = bb.getInt(p+184)*sxy; // bytes 185-188: y coordinate
+    _i2s[itrace] = i2;
+    _i3s[itrace] = i3;
+  }
+
+  private static int orderCode(ByteOrder order) {
+    return (order==ByteOrder.BIG_ENDIAN)?0:1;
+  }
+
+  private static ByteBuffer map(FileChannel fc, long p, long n)
+    throws IOException
+  {
+    return fc.map(FileChannel.MapMode.READ_ONLY,p,n);
+  }
+}
@@ -0,0 +1,237 @@
+/****************************************************************************
+Copyright (c) 2016, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+
+package segy;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+import edu.mines.jtk.util.*;
+import static edu.mines.jtk.util.ArrayMath.*;
+import static segy.FileChannels.*;
+
+/**
+ * Writes images in SEG-Y format with headers copied from a template.
+ * The template is a SEG-Y image, typically the one from which images to
+ * be written, such as fault likelihoods, relative geologic time, or
+ * impedance, were computed. Text and binary file headers and all trace
+ * headers are copied from the template; only the sample format code in
+ * the binary header is changed, if necessary. Traces are written in the
+ * same order as in the template, and trace samples are taken from an
+ * image with the sampling grid of the template, so that sample values
+ * for grid indices (i2,i3) are those of image[i3-i3min][i2-i2min].
+ * <p>
+ * Samples are written as 4-byte IBM floats (format code 1) or IEEE
+ * floats (format code 5), with the byte order of the template. Traces
+ * are encoded in parallel chunks, and each chunk of traces is written
+ * with a single positional write to a file channel.
+ * <p>
+ * Images to be written may be in memory or in a file of floats. Images
+ * in files are read one chunk of traces at a time, so that large images
+ * need not fit in memory.
+ *
+ * @author Xinming Wu, Colorado School of Mines
+ * @version 2016.12.15
+ */
+public class SegyWriter {
+
+  /**
+   * Constructs a writer with headers copied from the specified image.
+   * The format is that of the image, if IBM or IEEE floats; otherwise,
+   * the format is IEEE floats.
+   * @param template the SEG-Y image with headers to copy.
+   */
+  public SegyWriter(SegyImage template) {
+    _si = template;
+    int format = template.getFormat();
+    _format = (format==1)?1:5;
+    _n1 = template.getN1();
+    _i2s = template.getI2s();
+    _i3s = template.getI3s();
+    _i2min = template.getI2Min();
+    _i3min = template.getI3Min();
+    _n2 = 1+template.getI2Max()-_i2min;
+    _n3 = 1+template.getI3Max()-_i3min;
+    _ntrace = template.countTraces();
+    _order = template.getByteOrder();
+  }
+
+  /**
+   * Sets the format of samples written.
+   * @param format the format code, 1 for IBM floats, 5 for IEEE floats.
+   */
+  public void setFormat(int format) {
+    Check.argument(format==1 || format==5,"format is 1 or 5");
+    _format = format;
+  }
+
+  /**
+   * Sets the number of traces in each chunk encoded in parallel.
+   * @param ntrace number of traces per chunk; default is 256.
+   */
+  public void setChunkSize(int ntrace) {
+    Check.argument(ntrace>0,"ntrace>0");
+    _mtrace = ntrace;
+  }
+
+  /**
+   * Writes an image in memory to a SEG-Y file.
+   * @param fileName name of the SEG-Y file to write.
+   * @param f array[n3][n2][n1] of image samples.
+   */
+  public void write(String fileName, final float[][][] f) {
+    Check.argument(f[0][0].length==_n1,"f[0][0].length == n1");
+    Check.argument(f[0].length==_n2,"f[0].length == n2");
+    Check.argument(f.length==_n3,"f.length == n3");
+    write(fileName,new TraceSource() {
+      public void getTrace(int i2, int i3, float[] t) {
+        copy(f[i3][i2],t);
+      }
+    });
+  }
+
+  /**
+   * Writes an image in a file of floats to a SEG-Y file.
+   * The file of floats must contain an array[n3][n2][n1] of floats,
+   * for the sampling grid of the template.
+   * @param fileName name of the SEG-Y file to write.
+   * @param floatsName name of the file of floats.
+   * @param floatsOrder byte order of the file of floats.
+   */
+  public void write(
+    String fileName, String floatsName, ByteOrder floatsOrder)
+  {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(floatsName,"r");
+      try {
+        final FileChannel fc = raf.getChannel();
+        final long nfloat = (long)_n1*_n2*_n3;
+        Check.argument(fc.size()==4L*nfloat,"file has n1*n2*n3 floats");
+        final ByteOrder order = floatsOrder;
+        final Parallel.Unsafe<ByteBuffer> bbu =
+          new Parallel.Unsafe<ByteBuffer>();
+        write(fileName,new TraceSource() {
+          public void getTrace(int i2, int i3, float[] t) {
+            ByteBuffer bb = bbu.get();
+            if (bb==null)
+              bbu.set(bb=ByteBuffer.allocate(4*_n1).order(order));
+            bb.clear();
+            try {
+              readFully(fc,bb,4L*_n1*(i2+(long)_n2*i3));
+            } catch (IOException ioe) {
+              throw new RuntimeException(ioe);
+            }
+            bb.flip();
+            bb.asFloatBuffer().get(t);
+          }
+        });
+      } finally {
+        raf.close();
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private SegyImage _si; // template with headers
+  private int _format; // format code for samples written
+  private int _n1,_n2,_n3; // sampling grid of template
+  private int _i2min,_i3min; // minimum grid indices of template
+  private int[] _i2s,_i3s; // grid indices of traces in template
+  private int _ntrace; // number of traces
+  private int _mtrace = 256; // number of traces per chunk
+  private ByteOrder _order; // byte order of template and output
+
+  // Provides trace samples for zero-based grid indices (i2,i3).
+  private interface TraceSource {
+    public void getTrace(int i2, int i3, float[] t);
+  }
+
+  // Buffers owned by one thread and reused for all chunks it encodes.
+  private static class ChunkBuffers {
+    ByteBuffer bb; // headers and samples for one chunk of traces
+    float[] t; // samples for one trace
+    ChunkBuffers(int mtrace, int n1, ByteOrder order) {
+      bb = ByteBuffer.allocate(mtrace*(240+4*n1)).order(order);
+      t = new float[n1];
+    }
+  }
+
+  private void write(String fileName, final TraceSource ts) {
+    final int n1 = _n1;
+    final int ntrace = _ntrace;
+    final int mtrace = min(_mtrace,ntrace);
+    final int nchunk = (ntrace+mtrace-1)/mtrace;
+    final long nbtrace = 240L+4L*n1;
+    try {
+      RandomAccessFile rai = new RandomAccessFile(_si.getFileName(),"r");
+      RandomAccessFile rao = new RandomAccessFile(fileName,"rw");
+      try {
+        final FileChannel fci = rai.getChannel();
+        final FileChannel fco = rao.getChannel();
+        rao.setLength(3600L+ntrace*nbtrace);
+        writeFileHeaders(fci,fco);
+        final Parallel.Unsafe<ChunkBuffers> cbu =
+          new Parallel.Unsafe<ChunkBuffers>();
+        Parallel.loop(nchunk,new Parallel.LoopInt() {
+        public void compute(int ichunk) {
+          ChunkBuffers cb = cbu.get();
+          if (cb==null)
+            cbu.set(cb=new ChunkBuffers(mtrace,n1,_order));
+          int jtrace = ichunk*mtrace;
+          int ltrace = min(mtrace,ntrace-jtrace);
+          ByteBuffer bb = cb.bb;
+          bb.clear();
+          try {
+            for (int itrace=jtrace; itrace<jtrace+ltrace; ++itrace) {
+              bb.limit(bb.position()+240);
+              readFully(fci,bb,_si.getHeaderOffset(itrace));
+              bb.limit(bb.capacity());
+              ts.getTrace(_i2s[itrace]-_i2min,_i3s[itrace]-_i3min,cb.t);
+              encode(cb.t,bb);
+            }
+            bb.flip();
+            writeFully(fco,bb,3600L+jtrace*nbtrace);
+          } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+          }
+        }});
+      } finally {
+        rai.close();
+        rao.close();
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  // Copies the text and binary file headers, with the new format code
+  // in bytes 3225-3226.
+  private void writeFileHeaders(FileChannel fci, FileChannel fco)
+    throws IOException
+  {
+    ByteBuffer bb = ByteBuffer.allocate(3600).order(_order);
+    readFully(fci,bb,0L);
+    bb.putShort(3224,(short)_format);
+    bb.flip();
+    writeFully(fco,bb,0L);
+  }
+
+  private void encode(float[] t, ByteBuffer bb) {
+    int n1 = t.length;
+    if (_format==1) {
+      IbmIeee.floatToIbm(t,bb);
+    } else {
+      for (int i1=0; i1<n1; ++i1)
+        bb.putFloat(t[i1]);
+    }
+  }
+}
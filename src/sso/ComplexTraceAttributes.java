@@ -0,0 +1,220 @@
+/****************************************************************************
+Copyright (c) 2016, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package sso;
+
+import edu.mines.jtk.util.*;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * Complex-trace attributes of 3D seismic images, computed in one pass.
+ * For each trace u, the quadrature trace h is computed by convolution
+ * with a precomputed Hamming-windowed Hilbert transform kernel. From
+ * u and h, this class computes any of the envelope sqrt(u*u+h*h),
+ * the instantaneous phase -atan2(h,u), the instantaneous frequency,
+ * and wrapped phase differences (phase gradients) in all three
+ * dimensions.
+ * <p>
+ * Phase has the same sign as in unct.InsPhase, and phase gradients are
+ * those computed by hv.PhaseUnwrapper.phaseGradient, so that they may be
+ * used directly by hv.PhaseUnwrapper.phaseSlope or phaseUnwrapping,
+ * without first storing a phase volume and computing gradients from it.
+ * <p>
+ * Slabs of traces with constant i3 are processed in parallel. Arctangents
+ * are computed with a polynomial approximation with few branches, with
+ * errors less than 2.0e-6 radians.
+ *
+ * @author Xinming Wu, Colorado School of Mines
+ * @version 2016.12.20
+ */
+public class ComplexTraceAttributes {
+
+  /**
+   * Constructs attributes with a Hilbert kernel of half-length 32.
+   */
+  public ComplexTraceAttributes() {
+    this(32);
+  }
+
+  /**
+   * Constructs attributes with a Hilbert kernel of specified half-length.
+   * @param nh half-length of Hilbert kernel, in samples.
+   */
+  public ComplexTraceAttributes(int nh) {
+    Check.argument(nh>0,"nh>0");
+    _nh = nh;
+    _hk = new float[nh+1];
+    for (int k=1; k<=nh; k+=2) {
+      float w = 0.54f+0.46f*cos(FLT_PI*k/(nh+1));
+      _hk[k] = w*2.0f/(FLT_PI*k);
+    }
+  }
+
+  /**
+   * Computes the quadrature trace of a trace.
+   * @param u input trace.
+   * @param h output quadrature trace.
+   */
+  public void applyHilbert(float[] u, float[] h) {
+    hilbert(u,h);
+  }
+
+  /**
+   * Computes complex-trace attributes of a 3D image. Any output array
+   * may be null, in which case that attribute is not computed.
+   * @param u input image.
+   * @param a output envelope.
+   * @param ph output instantaneous phase, in radians.
+   * @param fr output instantaneous frequency of the analytic signal u+ih,
+   *  in cycles per sample.
+   * @param g1 output phase gradient in 1st dimension.
+   * @param g2 output phase gradient in 2nd dimension.
+   * @param g3 output phase gradient in 3rd dimension.
+   */
+  public void apply(
+    final float[][][] u, final float[][][] a, float[][][] ph,
+    final float[][][] fr, final float[][][] g1,
+    final float[][][] g2, final float[][][] g3)
+  {
+    final int n3 = u.length;
+    final int n2 = u[0].length;
+    final int n1 = u[0][0].length;
+    if (ph==null && g3!=null)
+      ph = new float[n3][n2][n1];
+    final float[][][] pf = ph;
+    final Parallel.Unsafe<SlabBuffers> sbu =
+      new Parallel.Unsafe<SlabBuffers>();
+    Parallel.loop(n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      SlabBuffers sb = sbu.get();
+      if (sb==null)
+        sbu.set(sb=new SlabBuffers(n1,n2));
+      applySlab(u[i3],sb,
+        (pf!=null)?pf[i3]:null,
+        (a!=null)?a[i3]:null,
+        (fr!=null)?fr[i3]:null,
+        (g1!=null)?g1[i3]:null,
+        (g2!=null)?g2[i3]:null);
+    }});
+    if (g3!=null) {
+      Parallel.loop(n3,new Parallel.LoopInt() {
+      public void compute(int i3) {
+        int j3 = min(max(i3,1),n3-2);
+        for (int i2=0; i2<n2; ++i2)
+          wrappedDifference(pf[j3-1][i2],pf[j3][i2],g3[i3][i2]);
+      }});
+    }
+  }
+
+  /**
+   * Returns an approximate arctangent of y/x, in radians.
+   * The approximation has errors less than 2.0e-6 radians.
+   * @param y the ordinate.
+   * @param x the abscissa.
+   * @return the arctangent, in the range [-pi,pi].
+   */
+  public static float atan2(float y, float x) {
+    float ax = abs(x);
+    float ay = abs(y);
+    float mx = max(ax,ay);
+    float mn = min(ax,ay);
+    float t = (mx>0.0f)?mn/mx:0.0f;
+    float s = t*t;
+    float r = ((((((-0.01172120f*s+0.05265332f)*s-0.11643287f)*s
+      +0.19354346f)*s-0.33262347f)*s+0.99997726f)*t);
+    r = (ay>ax)?FLT_PI/2.0f-r:r;
+    r = (x<0.0f)?FLT_PI-r:r;
+    return (y<0.0f)?-r:r;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private int _nh; // half-length of Hilbert kernel
+  private float[] _hk; // Hilbert kernel, for lags 0 to nh
+
+  // Quadrature trace by convolution with the Hilbert kernel, for which
+  // h[-k] = -h[k]. Samples beyond the ends of the trace are zero.
+  private void hilbert(float[] u, float[] h) {
+    int n1 = u.length;
+    for (int i1=0; i1<n1; ++i1) {
+      float hi = 0.0f;
+      int kmax = min(_nh,max(i1,n1-1-i1));
+      for (int k=1; k<=kmax; k+=2) {
+        float ui = (i1-k>=0)?u[i1-k]:0.0f;
+        float uj = (i1+k<n1)?u[i1+k]:0.0f;
+        hi += _hk[k]*(ui-uj);
+      }
+      h[i1] = hi;
+    }
+  }
+
+  // Work arrays owned by one thread, and reused for all slabs.
+  private static class SlabBuffers {
+    float[] h; // quadrature trace
+    float[][] p; // phase for one slab, if not output
+    SlabBuffers(int n1, int n2) {
+      h = new float[n1];
+      p = new float[n2][n1];
+    }
+  }
+
+  // Attributes for one slab of traces. Phase is computed for all traces
+  // before gradients in the 2nd dimension.
+  private void applySlab(
+    float[][] u, SlabBuffers sb, float[][] ph,
+    float[][] a, float[][] fr, float[][] g1, float[][] g2)
+  {
+    int n2 = u.length;
+    int n1 = u[0].length;
+    float[] h = sb.h;
+    float[][] pf = (ph!=null)?ph:sb.p;
+    for (int i2=0; i2<n2; ++i2) {
+      float[] u2 = u[i2];
+      float[] p2 = pf[i2];
+      hilbert(u2,h);
+      for (int i1=0; i1<n1; ++i1)
+        p2[i1] = -atan2(h[i1],u2[i1]);
+      if (a!=null) {
+        float[] a2 = a[i2];
+        for (int i1=0; i1<n1; ++i1)
+          a2[i1] = sqrt(u2[i1]*u2[i1]+h[i1]*h[i1]);
+      }
+      if (g1!=null || fr!=null) {
+        float[] d2 = (g1!=null)?g1[i2]:h;
+        for (int i1=1; i1<n1-1; ++i1)
+          d2[i1] = wrap(p2[i1]-p2[i1-1]);
+        d2[n1-1] = d2[n1-2];
+        d2[0] = d2[1];
+        if (fr!=null) {
+          float[] f2 = fr[i2];
+          float s = -0.5f/FLT_PI;
+          for (int i1=0; i1<n1; ++i1)
+            f2[i1] = s*d2[i1];
+        }
+      }
+    }
+    if (g2!=null) {
+      for (int i2=0; i2<n2; ++i2) {
+        int j2 = min(max(i2,1),n2-2);
+        wrappedDifference(pf[j2-1],pf[j2],g2[i2]);
+      }
+    }
+  }
+
+  // Phase differences d = p - q, wrapped into [-pi,pi].
+  private static void wrappedDifference(float[] q, float[] p, float[] d) {
+    int n1 = d.length;
+    for (int i1=0; i1<n1; ++i1)
+      d[i1] = wrap(p[i1]-q[i1]);
+  }
+
+  private static float wrap(float d) {
+    if (d> FLT_PI) d -= 2.0f*FLT_PI;
+    if (d<-FLT_PI) d += 2.0f*FLT_PI;
+    return d;
+  }
+}
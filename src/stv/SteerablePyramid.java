@@ -6,7 +6,10 @@ available at http://www.eclipse.org/legal/cpl-v10.html
 ****************************************************************************/
 package stv;
 
+import java.util.HashMap;
+
 import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.util.Parallel;
 import static edu.mines.jtk.util.ArrayMath.*;
 
 /**
@@ -161,38 +164,7 @@ public class SteerablePyramid {
    * 3D image.
    */
   public float[][][][][] makePyramid(float[][][] x) {
-    nx3 = x.length;
-    nx2 = x[0].length;
-    nx1 = x[0][0].length;
-    // Compute number of levels in pyramid from size of input image.  Also
-    // determine dimensions n1,n2,n3 for the finest-sampled pyramid level
-    // that will allow us to subsample each pyramid level without losing the
-    // last sample.  In our pyramid images we will carry this number of 
-    // samples and copy the original number of samples only for final output.
-    nlev = 1;
-    int nlev2 = 1;
-    int nlev3 = 1;
-    n1 = 9;
-    n2 = 9;
-    n3 = 9;
-    while (nx1>n1) {
-      n1 = (n1-1)*2+1;
-      nlev += 1;
-    }
-    while (nx2>n2) {
-      n2 = (n2-1)*2+1;
-      nlev2 += 1;
-    }
-    while (nx3>n3) {
-      n3 = (n3-1)*2+1;
-      nlev3 += 1;
-    }
-    if (nlev>nlev2) {
-      nlev = nlev2;
-    }
-    if (nlev>nlev3) {
-      nlev = nlev3;
-    }
+    initLevels(x);
     /**
      * Create output 5-dimensional array, consisting of:
      * Basis images: nlev*ndir 3D sub-arrays; for each pyramid level images
@@ -707,6 +679,72 @@ public class SteerablePyramid {
     }
   }
   
+  /**
+   * Applies steerable filtering to a 3D image, one pyramid level at a time.
+   * The result is that of {@link #makePyramid(float[][][])}, followed by
+   * {@link #estimateAttributes(boolean,double,float[][][][][])},
+   * {@link #steerScale(boolean,int,float,float,float[][][][][],float[][][][][])}
+   * and {@link #sumPyramid(boolean,float[][][][][])}, but without storing
+   * the steerable pyramid or attributes for all levels.
+   * <p>
+   * Basis images are kept only for the level being steered and the next
+   * coarser level, which are needed to average attributes across scales.
+   * Attributes are computed for each sample as steering weights are applied,
+   * and steered basis images are accumulated directly into one sum for each
+   * level. Fourier transforms are reused for all levels of the same size.
+   * @param forlinear true: apply to enhance locally linear, false: apply 
+   * for planar.
+   * @param sigma half-width of 3D Gaussian smoothing filter.
+   * @param linpowr linearity power and scaling type switch.
+   * @param k sigmoidal thresholding steepness.
+   * @param thresh threshold.
+   * @param keeplow if true:keep low-wavenumber energy, if false: zero it.
+   * @param x input 3D image.
+   * @return array containing output filtered 3D image.
+   */
+  public float[][][] steerFilter(boolean forlinear,double sigma,int linpowr,
+                 float k,float thresh,boolean keeplow,float[][][] x) {
+    initLevels(x);
+    statelinear = forlinear;
+    float[][][][][] spyr = new float[nlev+1][][][][];
+    float[][][][] sums = new float[nlev+1][][][];
+    allocateLevel(0,spyr);
+    float[][][] cf = ftForward(0,x);
+    applyRadial(ka,kb,cf);
+    makePyramidLevel(0,cf,spyr);
+    float[][][][] pqa = null;
+    for (int lev=0; lev<nlev; ++lev) {
+      // Make the next coarser level, needed for averaging across scales.
+      if (lev+1<nlev) {
+        allocateLevel(lev+1,spyr);
+        cf = ftForward(lev+1,spyr[lev+1][0]);
+        makePyramidLevel(lev+1,cf,spyr);
+      }
+      cf = null;
+      // Average preprocessed basis images of this and adjacent levels.
+      float[][][][] pqb = pqjShiftSmooth(sigma,lev,spyr);
+      if (pqa!=null) {
+        for (int dir=0; dir<NDIR3; ++dir) {
+          add(pqb[dir],pqa[dir],pqb[dir]);
+        }
+        pqa = null;
+      }
+      if (lev+1<nlev) {
+        addCoarser(pqjShiftSmooth(0.5*sigma,lev+1,spyr),pqb);
+      }
+      // Steer and sum basis images, then keep only what the next level
+      // needs from this one.
+      sums[lev] = steerLevel(forlinear,linpowr,k,thresh,pqb,spyr[lev]);
+      pqb = null;
+      if (lev+1<nlev) {
+        pqa = decimate(pqjShiftSmooth(2.0*sigma,lev,spyr));
+      }
+      spyr[lev] = null;
+    }
+    sums[nlev] = spyr[nlev][0];
+    return sumLevels(keeplow,sums);
+  }
+  
   ///////////////////////////////////////////////////////////////////////////
   // private
   private static final double THETA0 = 0.0*PI/3.0;
@@ -726,8 +764,250 @@ public class SteerablePyramid {
   private static final double SIN_PIO3 = sin(PI/3.0);
   private int nlev,nx1,nx2,nx3,n1,n2,n3;
   private boolean statelinear;
+  private HashMap<Integer,FftReal> fftr = new HashMap<Integer,FftReal>();
+  private HashMap<Integer,FftComplex> fftc = new HashMap<Integer,FftComplex>();
   double ka,kb;
   
+  /**
+   * Computes the number of levels and dimensions n1,n2,n3 of the finest
+   * pyramid level for an input 3D image.
+   * @param x input 3D image.
+   */
+  private void initLevels(float[][][] x) {
+    nx3 = x.length;
+    nx2 = x[0].length;
+    nx1 = x[0][0].length;
+    // Compute number of levels in pyramid from size of input image.  Also
+    // determine dimensions n1,n2,n3 for the finest-sampled pyramid level
+    // that will allow us to subsample each pyramid level without losing the
+    // last sample.  In our pyramid images we will carry this number of 
+    // samples and copy the original number of samples only for final output.
+    nlev = 1;
+    int nlev2 = 1;
+    int nlev3 = 1;
+    n1 = 9;
+    n2 = 9;
+    n3 = 9;
+    while (nx1>n1) {
+      n1 = (n1-1)*2+1;
+      nlev += 1;
+    }
+    while (nx2>n2) {
+      n2 = (n2-1)*2+1;
+      nlev2 += 1;
+    }
+    while (nx3>n3) {
+      n3 = (n3-1)*2+1;
+      nlev3 += 1;
+    }
+    if (nlev>nlev2) {
+      nlev = nlev2;
+    }
+    if (nlev>nlev3) {
+      nlev = nlev3;
+    }
+  }
+  
+  /**
+   * Allocates basis images for a single 3D pyramid level, if not already
+   * allocated, and the lower-wavenumber image for the next level.
+   * @param lev level number.
+   * @param spyr input/output 3D steerable pyramid, with only some levels.
+   */
+  private void allocateLevel(int lev,float[][][][][] spyr) {
+    int lfactor = (int)pow(2.0,(double)lev);
+    int nl3 = (n3-1)/lfactor+1;
+    int nl2 = (n2-1)/lfactor+1;
+    int nl1 = (n1-1)/lfactor+1;
+    if (spyr[lev]==null) {
+      spyr[lev] = new float[NDIR3][][][];
+    }
+    for (int dir=0; dir<NDIR3; ++dir) {
+      if (spyr[lev][dir]==null) {
+        spyr[lev][dir] = zerofloat(nl1,nl2,nl3);
+      }
+    }
+    spyr[lev+1] = new float[NDIR3][][][];
+    spyr[lev+1][0] = zerofloat((nl1-1)/2+1,(nl2-1)/2+1,(nl3-1)/2+1);
+  }
+  
+  /**
+   * Estimates attributes and applies steering weights and scaling to the
+   * basis images of a single 3D pyramid level.  Attributes are computed
+   * for each sample from the averaged, preprocessed basis images and then
+   * used immediately, so that they need not be stored.
+   * @param forlinear true: apply to enhance locally linear, false: apply 
+   * for planar.
+   * @param linpowr linearity power and scaling type switch.
+   * @param k sigmoidal thresholding steepness.
+   * @param thresh threshold.
+   * @param pq preprocessed basis images averaged across adjacent levels.
+   * @param q basis images for the level.
+   * @return sum of the steered and scaled basis images.
+   */
+  private static float[][][] steerLevel(
+    final boolean forlinear, final int linpowr, final float k,
+    final float thresh, final float[][][][] pq, final float[][][][] q)
+  {
+    final int nl3 = q[0].length;
+    final int nl2 = q[0][0].length;
+    final int nl1 = q[0][0][0].length;
+    final int abcindx = (forlinear)?0:2;
+    final int e0indx = (forlinear)?1:2;
+    final int e1indx = (forlinear)?0:1;
+    final float[][][] s = zerofloat(nl1,nl2,nl3);
+    Parallel.loop(nl3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      double[] f = zerodouble(NDIR3);
+      double[][] abcf = zerodouble(4,3);
+      float[] attr = zerofloat(3);
+      float[] qi = zerofloat(NDIR3);
+      for (int i2=0; i2<nl2; ++i2) {
+        for (int i1=0; i1<nl1; ++i1) {
+          for (int j=0; j<NDIR3; ++j) {
+            f[j] = pq[j][i3][i2][i1];
+          }
+          findCriticalPoints(f,abcf);
+          attr[0] = (float)(abcf[abcindx][0]);
+          attr[1] = (float)(abcf[abcindx][1]);
+          attr[2] = (float)(abcf[abcindx][2]);
+          float d = (float)((abcf[e0indx][3]-abcf[e1indx][3])/abcf[2][3]);
+          float scal = 0.0f;
+          if(linpowr==0) {
+            scal = 1.0f;
+          }
+          else if(linpowr==1) {
+            scal = d;
+          }
+          else if(linpowr>1&&linpowr<99) {
+            scal = pow(d,linpowr);
+          }
+          else if(linpowr==99) {
+            scal = 1.0f/(1.0f+exp(k*(thresh-d)));
+          }
+          // Convert basis images to line-enhancing sin^2, if linear.
+          float p = 0.0f;
+          for (int dir=0; dir<NDIR3; ++dir) {
+            qi[dir] = q[dir][i3][i2][i1];
+            p += qi[dir];
+          }
+          if (forlinear) {
+            p *= 0.5f;
+            for (int dir=0; dir<NDIR3; ++dir) {
+              qi[dir] = p-qi[dir];
+            }
+          }
+          float si = 0.0f;
+          for (int dir=0; dir<NDIR3; ++dir) {
+            int j0 = (dir<2)?0:(dir<4)?2:1;
+            float ai = attr[j0];
+            float bi = attr[(j0+1)%3];
+            float ci = attr[(j0+2)%3];
+            if (dir%2==1) {
+              bi = -bi;
+            }
+            float wi = (ai+bi)*(ai+bi)-ci*ci;
+            si += scal*wi*qi[dir];
+          }
+          s[i3][i2][i1] = si;
+        }
+      }
+    }});
+    return s;
+  }
+  
+  /**
+   * Adds preprocessed basis images of the next coarser level to those of
+   * a 3D pyramid level.
+   * @param pqc preprocessed basis images for the coarser level.
+   * @param pqb input/output preprocessed basis images for the level.
+   */
+  private static void addCoarser(float[][][][] pqc,float[][][][] pqb) {
+    int nl3 = pqb[0].length;
+    int nl2 = pqb[0][0].length;
+    int nl1 = pqb[0][0][0].length;
+    for (int j=0; j<NDIR3; ++j) {
+      for (int i3b=0; i3b<nl3; ++i3b) {
+        for (int i2b=0; i2b<nl2; ++i2b) {
+          for (int i1b=0; i1b<nl1; ++i1b) {
+            pqb[j][i3b][i2b][i1b] += pqc[j][i3b/2][i2b/2][i1b/2];
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Subsamples preprocessed basis images of a 3D pyramid level to the
+   * sampling of the next coarser level.
+   * @param pq preprocessed basis images.
+   * @return subsampled basis images.
+   */
+  private static float[][][][] decimate(float[][][][] pq) {
+    int ml3 = (pq[0].length-1)/2+1;
+    int ml2 = (pq[0][0].length-1)/2+1;
+    int ml1 = (pq[0][0][0].length-1)/2+1;
+    float[][][][] pqd = new float[NDIR3][][][];
+    for (int j=0; j<NDIR3; ++j) {
+      pqd[j] = zerofloat(ml1,ml2,ml3);
+      copy(ml1,ml2,ml3,0,0,0,2,2,2,pq[j],0,0,0,1,1,1,pqd[j]);
+    }
+    return pqd;
+  }
+  
+  /**
+   * Sums steered images for all levels of a 3D pyramid.  One scratch
+   * image per level stands in for the remaining basis images, so that
+   * the sum can be computed by {@link #sumPyramid(boolean,float[][][][][])}.
+   * @param keeplow if true:keep low-wavenumber energy, if false: zero it.
+   * @param sums steered images for all levels and residual low image.
+   * @return array containing output filtered 3D image.
+   */
+  private float[][][] sumLevels(boolean keeplow,float[][][][] sums) {
+    float[][][][][] spyr = new float[nlev+1][][][][];
+    for (int lev=0; lev<nlev; ++lev) {
+      float[][][] t = zerofloat(sums[lev][0][0].length,
+                                sums[lev][0].length,sums[lev].length);
+      spyr[lev] = new float[NDIR3][][][];
+      spyr[lev][0] = sums[lev];
+      for (int dir=1; dir<NDIR3; ++dir) {
+        spyr[lev][dir] = t;
+      }
+    }
+    spyr[nlev] = new float[][][][]{sums[nlev]};
+    return sumPyramid(keeplow,spyr);
+  }
+  
+  /**
+   * Returns a real-to-complex Fourier transform for a number of samples.
+   * Transforms are constructed once and reused for all pyramid levels.
+   * @param nf number of samples.
+   * @return the transform.
+   */
+  private FftReal fftReal(int nf) {
+    FftReal fft = fftr.get(nf);
+    if (fft==null) {
+      fft = new FftReal(nf);
+      fftr.put(nf,fft);
+    }
+    return fft;
+  }
+  
+  /**
+   * Returns a complex-to-complex Fourier transform for a number of samples.
+   * Transforms are constructed once and reused for all pyramid levels.
+   * @param nf number of samples.
+   * @return the transform.
+   */
+  private FftComplex fftComplex(int nf) {
+    FftComplex fft = fftc.get(nf);
+    if (fft==null) {
+      fft = new FftComplex(nf);
+      fftc.put(nf,fft);
+    }
+    return fft;
+  }
+  
   /**
    * Make a single 2D pyramid level consisting of three directionally-filtered
    * basis images and a subsampled lower-wavenumber image.  (The low-wavenumber
@@ -1409,8 +1689,8 @@ public class SteerablePyramid {
     float[][] xr = zerofloat(nf1,nf2);
     copy(ny1,ny2,0,0,x,mpad,mpad,xr);
     float[][] cx = czerofloat(nf1c,nf2);
-    fft1 = new FftReal(nf1);
-    fft2 = new FftComplex(nf2);
+    fft1 = fftReal(nf1);
+    fft2 = fftComplex(nf2);
     fft1.realToComplex1(1,nf2,xr,cx);
     flipSign(2,cx);
     fft2.complexToComplex2(1,nf1c,cx,cx);
@@ -1443,9 +1723,9 @@ public class SteerablePyramid {
     float[][][] xr = zerofloat(nf1,nf2,nf3);
     copy(ny1,ny2,ny3,0,0,0,x,mpad,mpad,mpad,xr);
     float[][][] cx = czerofloat(nf1c,nf2,nf3);
-    fft1 = new FftReal(nf1);
-    fft2 = new FftComplex(nf2);
-    fft3 = new FftComplex(nf3);
+    fft1 = fftReal(nf1);
+    fft2 = fftComplex(nf2);
+    fft3 = fftComplex(nf3);
     fft1.realToComplex1(1,nf2,nf3,xr,cx);
     flipSign(2, cx);
     fft2.complexToComplex2(1,nf1c,nf3,cx,cx);
@@ -1474,8 +1754,8 @@ public class SteerablePyramid {
     int lfactor = (int)pow(2.0,(double)lev);
     int nl2 = (n2-1)/lfactor+1;
     int nl1 = (n1-1)/lfactor+1;
-    fft1 = new FftReal(nf1);
-    fft2 = new FftComplex(nf2);
+    fft1 = fftReal(nf1);
+    fft2 = fftComplex(nf2);
     fft2.complexToComplex2(-1,nf1c,cf,cf);
     flipSign(2,cf);
     fft2.scale(nf1c,nf2,cf);
@@ -1507,9 +1787,9 @@ public class SteerablePyramid {
     int nl3 = (n3-1)/lfactor+1;
     int nl2 = (n2-1)/lfactor+1;
     int nl1 = (n1-1)/lfactor+1;
-    fft1 = new FftReal(nf1);
-    fft2 = new FftComplex(nf2);
-    fft3 = new FftComplex(nf3);
+    fft1 = fftReal(nf1);
+    fft2 = fftComplex(nf2);
+    fft3 = fftComplex(nf3);
     fft3.complexToComplex3(-1,nf1c,nf2,cf,cf);
     flipSign(3, cf);
     fft3.scale(nf1c,nf2,nf3,cf);
@@ -1236,6 +1236,12 @@ public class DynamicWarpingX {
       _sc.apply(_s1,_s2,_t,ay);
       return new VecArrayFloat2(ay);
     }
+    public void apply(Vec x, Vec y) {
+      float[][] ax = ((VecArrayFloat2)x).getArray();
+      float[][] ay = ((VecArrayFloat2)y).getArray();
+      copy(ax,ay);
+      _sc.apply(_s1,_s2,_t,ay);
+    }
     private SmoothCovariance _sc;
     private Sampling _s1,_s2;
     private Tensors2 _t;
@@ -1253,23 +1259,32 @@ public class DynamicWarpingX {
       _nk = _nk1*_nk2;
     }
     public Vec apply(Vec x) {
-      VecArrayFloat2 vx = (VecArrayFloat2)x;
-      float[][] ax = vx.getArray();
-      ax = integrateForward((float)_s1.getDelta(),ax);
-      float[] ay = new float[_nk];
+      VecArrayFloat1 vy = new VecArrayFloat1(_nk);
+      apply(x,vy);
+      return vy;
+    }
+    public Vec applyTranspose(Vec x) {
+      VecArrayFloat2 vy = new VecArrayFloat2(_n1,_n2);
+      applyTranspose(x,vy);
+      return vy;
+    }
+    public void apply(Vec x, Vec y) {
+      float[][] ax = ((VecArrayFloat2)x).getArray();
+      float[] ay = ((VecArrayFloat1)y).getArray();
+      if (_aw==null) _aw = new float[_n2][_n1];
+      integrateForward((float)_s1.getDelta(),ax,_aw);
       for (int ik2=0,ik=0; ik2<_nk2; ++ik2) {
         int i2 = _k2s[ik2];
         for (int ik1=0; ik1<_nk1; ++ik1,++ik) {
           int i1 = _k1s[ik1];
-          ay[ik] = ax[i2][i1];
+          ay[ik] = _aw[i2][i1];
         }
       }
-      return new VecArrayFloat1(ay);
     }
-    public Vec applyTranspose(Vec x) {
-      VecArrayFloat1 vx = (VecArrayFloat1)x;
-      float[] ax = vx.getArray();
-      float[][] ay = new float[_n2][_n1];
+    public void applyTranspose(Vec x, Vec y) {
+      float[] ax = ((VecArrayFloat1)x).getArray();
+      float[][] ay = ((VecArrayFloat2)y).getArray();
+      zero(ay);
       for (int ik2=0,ik=0; ik2<_nk2; ++ik2) {
         int i2 = _k2s[ik2];
         for (int ik1=0; ik1<_nk1; ++ik1,++ik) {
@@ -1277,11 +1292,12 @@ public class DynamicWarpingX {
           ay[i2][i1] = ax[ik];
         }
       }
-      ay = integrateReverse((float)_s1.getDelta(),ay);
-      return new VecArrayFloat2(ay);
+      integrateReverse((float)_s1.getDelta(),ay,ay);
     }
-    private float[][] integrateForward(final float d1, final float[][] x) {
-      final float[][] y = new float[_n2][_n1];
+    // Integration may be performed in place, with x and y the same array.
+    private void integrateForward(
+      final float d1, final float[][] x, final float[][] y) 
+    {
       Parallel.loop(_n2,new Parallel.LoopInt() {
       public void compute(int i2) {
         float[] x2 = x[i2];
@@ -1290,10 +1306,10 @@ public class DynamicWarpingX {
         for (int i1=1; i1<_n1; ++i1)
           y2[i1] = y2[i1-1]+d1*x2[i1];
       }});
-      return y;
     }
-    private float[][] integrateReverse(final float d1, final float[][] x) {
-      final float[][] y = new float[_n2][_n1];
+    private void integrateReverse(
+      final float d1, final float[][] x, final float[][] y) 
+    {
       Parallel.loop(_n2,new Parallel.LoopInt() {
       public void compute(int i2) {
         float[] x2 = x[i2];
@@ -1302,11 +1318,11 @@ public class DynamicWarpingX {
         for (int i1=_n1-2; i1>=0; --i1)
           y2[i1] = y2[i1+1]+d1*x2[i1];
       }});
-      return y;
     }
     private Sampling _s1,_s2;
     private int[] _k1s,_k2s;
     private int _nk1,_nk2,_n1,_n2,_nk;
+    private float[][] _aw; // work array for integration
   }
 
   private static float[][] interpolateShiftsLs(
@@ -26,13 +26,32 @@ import dnp.*;
  */
 public class LeastSquaresSolver {
 
+  /**
+   * A covariance operator C. The in-place method y = Cx should be
+   * overridden by operators applied many times, because the default
+   * implementation allocates a new vector for each application.
+   */
   public interface CovarianceOperator {
     public Vec apply(Vec vx);
+    default public void apply(Vec vx, Vec vy) {
+      vy.add(0.0,apply(vx),1.0);
+    }
   }
 
+  /**
+   * A linear operator G and its transpose G'. The in-place methods 
+   * y = Gx and y = G'x should be overridden by operators applied many
+   * times, because the default implementations allocate new vectors.
+   */
   public interface LinearOperator {
     public Vec apply(Vec vx);
     public Vec applyTranspose(Vec vx);
+    default public void apply(Vec vx, Vec vy) {
+      vy.add(0.0,apply(vx),1.0);
+    }
+    default public void applyTranspose(Vec vx, Vec vy) {
+      vy.add(0.0,applyTranspose(vx),1.0);
+    }
   }
 
   public LeastSquaresSolver() {
@@ -58,15 +77,69 @@ public class LeastSquaresSolver {
     _m0 = m0;
   }
 
+  /**
+   * Sets parameters that stop conjugate-gradient iterations.
+   * The defaults are tiny = 0.01 and maxi = 5.
+   * @param tiny threshold for ratio of residuals ||r||/||b||.
+   * @param maxi maximum number of iterations.
+   */
+  public void setStopping(double tiny, int maxi) {
+    _tiny = tiny;
+    _maxi = maxi;
+  }
+
+  /**
+   * Sets a stopper that can end conjugate-gradient iterations early.
+   * @param stopper the stopper; null, for none.
+   */
+  public void setStopper(CgSolver.Stopper stopper) {
+    _stopper = stopper;
+  }
+
+  /**
+   * Sets a preconditioner for the data-space system of equations.
+   * The preconditioner approximates inv(G Cm G' + Cd); its in-place
+   * method is used by each conjugate-gradient iteration.
+   * @param m the preconditioner; null, for none.
+   */
+  public void setPreconditioner(CovarianceOperator m) {
+    _m = m;
+  }
+
+  /**
+   * Enables or disables tracing of vector norms in each iteration.
+   * Tracing requires extra passes over vectors, and is disabled by
+   * default.
+   * @param trace true, for tracing; false, otherwise.
+   */
+  public void setTrace(boolean trace) {
+    _trace = trace;
+  }
+
+  /**
+   * Returns information for the most recent solve.
+   * @return the information; null, if no solve has been performed.
+   */
+  public CgSolver.Info getInfo() {
+    return _info;
+  }
+
   public Vec solve(Vec d) {
     if (_m0!=null) {
       d = d.clone();
       d.add(1.0,_g.apply(_m0),-1.0);
     }
-    OperatorA a = new OperatorA(_g,_cm,_cd);
+    OperatorA a = new OperatorA(_g,_cm,_cd,_trace);
     Vec x = d.clone();
-    CgSolver cgs = new CgSolver(0.01,5);
-    CgSolver.Info info = cgs.solve(a,d,x);
+    CgSolver cgs = new CgSolver(_tiny,_maxi);
+    if (_m!=null) {
+      _info = cgs.solve(_stopper,a,new OperatorM(_m),d,x);
+    } else {
+      _info = cgs.solve(_stopper,a,d,x);
+    }
+    if (_trace)
+      trace("solve: niter="+_info.niter+" rnorm/bnorm="+
+        _info.rnorm/_info.bnorm);
     x = _cm.apply(_g.applyTranspose(x));
     if (_m0!=null)
       x.add(1.0,_m0,1.0);
@@ -79,31 +152,64 @@ public class LeastSquaresSolver {
   private LinearOperator _g;
   private CovarianceOperator _cm;
   private CovarianceOperator _cd;
+  private CovarianceOperator _m; // preconditioner
+  private CgSolver.Stopper _stopper;
+  private CgSolver.Info _info;
   private Vec _m0;
+  private double _tiny = 0.01;
+  private int _maxi = 5;
+  private boolean _trace;
 
+  // Operator A = G Cm G' + Cd, applied in place. Work vectors in model
+  // space (for G'x and Cm G'x) and in data space (for Cd x) are made
+  // once, in the first application, and reused in later applications.
   private static class OperatorA implements CgSolver.A {
     OperatorA(
       LinearOperator g, 
       CovarianceOperator cm, 
-      CovarianceOperator cd)
+      CovarianceOperator cd,
+      boolean trace)
     {
       _g = g;
       _cm = cm;
       _cd = cd;
+      _trace = trace;
     }
     public void apply(Vec x, Vec y) {
-      Vec gx = _g.applyTranspose(x); trace("norm2(gx)="+gx.norm2());
-      Vec cmgx = _cm.apply(gx); trace("norm2(cmgx)="+cmgx.norm2());
-      Vec gcmgx = _g.apply(cmgx); trace("norm2(gcmgx)="+gcmgx.norm2());
-      y.add(0.0,gcmgx,1.0);
-      trace("norm2(y)="+y.norm2());
-      //y.add(0.0,_g.apply(_cm.apply(_g.applyTranspose(x))),1.0);
-      if (_cd!=null)
-        y.add(1.0,_cd.apply(x),1.0);
+      if (_gx==null) {
+        _gx = _g.applyTranspose(x);
+        _cmgx = _gx.clone();
+        if (_cd!=null)
+          _cdx = x.clone();
+      } else {
+        _g.applyTranspose(x,_gx);
+      }
+      _cm.apply(_gx,_cmgx);
+      _g.apply(_cmgx,y);
+      if (_cd!=null) {
+        _cd.apply(x,_cdx);
+        y.add(1.0,_cdx,1.0);
+      }
+      if (_trace) {
+        trace("norm2(gx)="+_gx.norm2());
+        trace("norm2(cmgx)="+_cmgx.norm2());
+        trace("norm2(y)="+y.norm2());
+      }
     }
     private LinearOperator _g;
     private CovarianceOperator _cm;
     private CovarianceOperator _cd;
+    private boolean _trace;
+    private Vec _gx,_cmgx,_cdx; // work vectors
+  }
+  private static class OperatorM implements CgSolver.A {
+    OperatorM(CovarianceOperator m) {
+      _m = m;
+    }
+    public void apply(Vec x, Vec y) {
+      _m.apply(x,y);
+    }
+    private CovarianceOperator _m;
   }
   private static void trace(String s) {
     System.out.println(s);
@@ -117,5 +223,11 @@ public class LeastSquaresSolver {
     public Vec applyTranspose(Vec x) {
       return x.clone();
     }
+    public void apply(Vec x, Vec y) {
+      y.add(0.0,x,1.0);
+    }
+    public void applyTranspose(Vec x, Vec y) {
+      y.add(0.0,x,1.0);
+    }
   }
 }
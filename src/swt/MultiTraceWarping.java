@@ -8,6 +8,7 @@ package swt;
 
 import java.util.Arrays;
 import java.util.Random;
+import java.util.TreeSet;
 
 import edu.mines.jtk.dsp.RecursiveExponentialFilter;
 import edu.mines.jtk.dsp.Sampling;
@@ -116,10 +117,27 @@ public class MultiTraceWarping {
     int ni = f.length;
     int nj = g.length;
     int lmax = min(max(ni,nj)-1,_lmax);
-    int lmin = -lmax;
-    int nl = 1+lmax-lmin;
+    int nl = 1+2*lmax;
     int nk = ni+nj-1;
-    float[][] e = fillfloat(_enull,nl,nk);
+    float[][] e = new float[nk][nl];
+    computeErrors(f,g,e);
+    return e;
+  }
+
+  /**
+   * Computes alignment errors e[k,l] for two sequences.
+   * The output array may be reused for different pairs of sequences;
+   * all of its elements are either computed or set to the null error.
+   * @param f array of values f[i] in 1st log sequence.
+   * @param g array of values g[j] in 2nd log sequence.
+   * @param e output array[ni+nj-1][1+2*lmax] of alignment errors e[k,l].
+   */
+  public void computeErrors(float[] f, float[] g, float[][] e) {
+    int ni = f.length;
+    int nj = g.length;
+    int lmax = min(max(ni,nj)-1,_lmax);
+    int lmin = -lmax;
+    fill(_enull,e);
     int[] igood = findGood(f);
     int[] jgood = findGood(g);
     int imin = min(igood);
@@ -141,7 +159,6 @@ public class MultiTraceWarping {
         }
       }
     }
-    return e;
   }
 
   /**
@@ -151,11 +168,24 @@ public class MultiTraceWarping {
    * @return array of accumulated errors d[k,l].
    */
   public float[][] accumulateErrors(float[][] e) {
+    float[][] d = new float[e.length][e[0].length];
+    accumulateErrors(e,d);
+    return d;
+  }
+
+  /**
+   * Computes accumulated errors d[k,l].
+   * Any null errors in e[k,l] will be null in d[k,l]. The output array
+   * may be reused for different pairs of sequences.
+   * @param e input array of alignment errors e[k,l].
+   * @param d output array of accumulated errors d[k,l].
+   */
+  public void accumulateErrors(float[][] e, float[][] d) {
     int nk = e.length;
     int nl = e[0].length;
     int lmax = (nl-1)/2;
     int lmin = -lmax;
-    float[][] d = fillfloat(_enull,nl,nk);
+    fill(_enull,d);
 
     // Range of k for which to accumulate errors.
     int kmin = kminNotNull(e);
@@ -191,7 +221,6 @@ public class MultiTraceWarping {
         }
       }
     }
-    return d;
   }
 
   /**
@@ -397,41 +426,17 @@ public class MultiTraceWarping {
     int nl = wl.length;
     int nz = wl[0].length;
     int[] ls = new int[nl];
-    final Pairs[] pt = new Pairs[nl*(nl-1)/2];
-    final int[] ils = new int[nl*(nl-1)/2];
-    final int[] jls = new int[nl*(nl-1)/2];
-    int nlp = 0;
+    int nlp = nl*(nl-1)/2;
+    int[] ils = new int[nlp];
+    int[] jls = new int[nlp];
+    nlp = 0;
     for (int il=0; il<nl; ++il) {
       for (int jl=il+1; jl<nl; ++jl,++nlp) {
         ils[nlp] = il;
         jls[nlp] = jl;
       }
     }
-    //final AtomicInteger nij = new AtomicInteger(0);
-    //Parallel.loop(nlp,new Parallel.LoopInt() {
-    //public void compute(int ip) {
-    for (int ip=0; ip<nlp; ++ip) {
-      int il = ils[ip];
-      int jl = jls[ip];
-      float[] fi = wl[il];
-      float[] gj = wl[jl];
-      if (wellNotNull(fi) && wellNotNull(gj)) {
-        float[][] e = computeErrors(fi,gj);
-        float[][] d = accumulateErrors(e);
-        int[][] kl = findWarping(d);
-        int[][] ij = convertWarping(kl,fi,gj);
-        int[] is = ij[0];
-        int[] js = ij[1];
-        int np = is.length;
-        //if(np>0){pt[nij.getAndIncrement()] = new Pairs(il,jl,is,js,np);}
-        if(np>0){pt[ip] = new Pairs(il,jl,is,js,np);}
-      }
-    }
-    //}});
-    //nlp = nij.get();
-    Pairs[] ps = new Pairs[nlp];
-    for (int ip=0; ip<nlp; ++ip)
-      ps[ip] = pt[ip];
+    Pairs[] ps = alignPairs(nlp,ils,jls,wl);
     //Pairs[] ps = findPairs(-0.1f,0.1f,wl);
     computeWeights(wl,ps,ls);
     float[][] r = computeShifts(nz,ls,ps);
@@ -455,7 +460,6 @@ public class MultiTraceWarping {
    int nlp = 0;
    int[] ils = new int[np*(np-1)/2];
    int[] jls = new int[np*(np-1)/2];
-   Pairs[] pt = new Pairs[np*(np-1)/2];
    for (int ip=0; ip<np; ++ip) {
      TriMesh.Node ndi = nds[ip];
      TriMesh.Node[] ndn = mesh.getNodeNabors(ndi);
@@ -465,25 +469,7 @@ public class MultiTraceWarping {
        jls[nlp] = ndn[ic].index;
      }
    }
-   for (int ip=0; ip<nlp; ++ip) {
-     int il = ils[ip];
-     int jl = jls[ip];
-     float[] fi = wl[il];
-     float[] gj = wl[jl];
-     if (wellNotNull(fi) && wellNotNull(gj)) {
-       float[][] e = computeErrors(fi,gj);
-       float[][] d = accumulateErrors(e);
-       int[][] kl = findWarping(d);
-       int[][] ij = convertWarping(kl,fi,gj);
-       int[] is = ij[0];
-       int[] js = ij[1];
-       int nk = is.length;
-       if(np>0){pt[ip] = new Pairs(il,jl,is,js,nk);}
-     }
-   }
-   Pairs[] ps = new Pairs[nlp];
-   for (int ip=0; ip<nlp; ++ip)
-     ps[ip] = pt[ip];
+   Pairs[] ps = alignPairs(nlp,ils,jls,wl);
    //computeWeights(x2,x3,wl,ps,ls);
    computeWeights(wl,ps,ls);
    float[][] r = computeShifts(nz,ls,ps);
@@ -491,6 +477,85 @@ public class MultiTraceWarping {
    return r;
  }
 
+  /**
+   * Returns shifts for logs in wells that are spatial neighbors.
+   * Only pairs of wells in a neighbor graph are aligned, so that the
+   * number of pairs grows linearly, not quadratically, with the number
+   * of wells. Each well is paired with at most kn nearest other wells
+   * within the specified maximum distance; pairs are symmetric, so a
+   * well may have more than kn neighbors.
+   * @param x2 array of 2nd coordinates of wells.
+   * @param x3 array of 3rd coordinates of wells.
+   * @param wl array[nl][nz] of log values, resampled to the same depths.
+   * @param kn maximum number of nearest neighbors for each well.
+   * @param dmax maximum distance between paired wells.
+   * @return array[nl][nz] of shifts.
+   */
+  public float[][] findShifts(
+    float[] x2, float[] x3, float[][] wl, int kn, float dmax)
+  {
+    int nl = wl.length;
+    int nz = wl[0].length;
+    int[] ls = new int[nl];
+    int[][] ijs = findNeighborPairs(x2,x3,kn,dmax);
+    Pairs[] ps = alignPairs(ijs[0].length,ijs[0],ijs[1],wl);
+    computeWeights(wl,ps,ls);
+    float[][] r = computeShifts(nz,ls,ps);
+    refineShifts(10,-0.05f,0.05f,wl,r);
+    return r;
+  }
+
+  /**
+   * Returns pairs of wells that are neighbors in space.
+   * @param x2 array of 2nd coordinates of wells.
+   * @param x3 array of 3rd coordinates of wells.
+   * @param kn maximum number of nearest neighbors for each well.
+   * @param dmax maximum distance between paired wells.
+   * @return array[2][np] of indices (il,jl), with il&lt;jl, of wells
+   *  in np pairs.
+   */
+  public int[][] findNeighborPairs(
+    float[] x2, float[] x3, int kn, float dmax)
+  {
+    int nl = x2.length;
+    KdTree kt = new KdTree(new float[][]{x2,x3});
+    float[] xmin = new float[2];
+    float[] xmax = new float[2];
+    TreeSet<Long> pairs = new TreeSet<Long>();
+    for (int il=0; il<nl; ++il) {
+      xmin[0] = x2[il]-dmax; xmax[0] = x2[il]+dmax;
+      xmin[1] = x3[il]-dmax; xmax[1] = x3[il]+dmax;
+      int[] jls = kt.findInRange(xmin,xmax);
+      int nj = jls.length;
+      float[] ds = new float[nj];
+      for (int ij=0; ij<nj; ++ij) {
+        float d2 = x2[jls[ij]]-x2[il];
+        float d3 = x3[jls[ij]]-x3[il];
+        ds[ij] = sqrt(d2*d2+d3*d3);
+      }
+      int[] ks = rampint(0,1,nj);
+      quickIndexSort(ds,ks);
+      for (int ij=0,nk=0; ij<nj && nk<kn; ++ij) {
+        int jl = jls[ks[ij]];
+        if (jl==il || ds[ks[ij]]>dmax) continue;
+        long ia = min(il,jl);
+        long ib = max(il,jl);
+        pairs.add(ia*nl+ib);
+        ++nk;
+      }
+    }
+    int np = pairs.size();
+    int[] ils = new int[np];
+    int[] jls = new int[np];
+    int ip = 0;
+    for (long p:pairs) {
+      ils[ip] = (int)(p/nl);
+      jls[ip] = (int)(p%nl);
+      ++ip;
+    }
+    return new int[][]{ils,jls};
+  }
+
  public Pairs[] findPairs(
     final float r1min, final float r1max, final float[][] fs) 
   {
@@ -1044,6 +1109,60 @@ public class MultiTraceWarping {
     double ws;
   }
 
+  /**
+   * Aligns specified pairs of logs in parallel. Pairs are scheduled on
+   * a work-stealing pool, and each thread reuses its own arrays for
+   * alignment errors and accumulated errors, so that memory does not
+   * grow with the number of pairs. Only the resulting index pairs are
+   * kept for the least-squares solve; pairs for which either log has
+   * no values, or for which warping yields no index pairs, are omitted.
+   * @param nlp number of pairs of logs.
+   * @param ils array of indices of 1st logs in pairs.
+   * @param jls array of indices of 2nd logs in pairs.
+   * @param wl array[nl][nz] of log values.
+   * @return array of aligned pairs.
+   */
+  private Pairs[] alignPairs(
+    int nlp, final int[] ils, final int[] jls, final float[][] wl)
+  {
+    final Pairs[] pt = new Pairs[nlp];
+    final Parallel.Unsafe<float[][][]> edu =
+      new Parallel.Unsafe<float[][][]>();
+    Parallel.loop(nlp,new Parallel.LoopInt() {
+    public void compute(int ip) {
+      int il = ils[ip];
+      int jl = jls[ip];
+      float[] fi = wl[il];
+      float[] gj = wl[jl];
+      if (wellNotNull(fi) && wellNotNull(gj)) {
+        int ni = fi.length;
+        int nj = gj.length;
+        int nl = 1+2*min(max(ni,nj)-1,_lmax);
+        int nk = ni+nj-1;
+        float[][][] ed = edu.get();
+        if (ed==null || ed[0].length!=nk || ed[0][0].length!=nl)
+          edu.set(ed=new float[2][nk][nl]);
+        float[][] e = ed[0];
+        float[][] d = ed[1];
+        computeErrors(fi,gj,e);
+        accumulateErrors(e,d);
+        int[][] kl = findWarping(d);
+        int[][] ij = convertWarping(kl,fi,gj);
+        int[] is = ij[0];
+        int[] js = ij[1];
+        int np = is.length;
+        if (np>0) pt[ip] = new Pairs(il,jl,is,js,np);
+      }
+    }});
+    int mlp = 0;
+    for (int ip=0; ip<nlp; ++ip)
+      if (pt[ip]!=null) ++mlp;
+    Pairs[] ps = new Pairs[mlp];
+    for (int ip=0,jp=0; ip<nlp; ++ip)
+      if (pt[ip]!=null) ps[jp++] = pt[ip];
+    return ps;
+  }
+
   /**
    * Conjugate-gradient operator A and preconditioner M.
    * The preconditioner smooths along depth, while subtracting
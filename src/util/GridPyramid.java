@@ -0,0 +1,163 @@
+/****************************************************************************
+Copyright (c) 2016, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package util;
+
+import edu.mines.jtk.util.*;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * Restriction and interpolation of 3D arrays for coarse-to-fine solvers.
+ * A coarse grid has (n+1)/2 samples for each dimension with n samples
+ * in the fine grid, and coarse sample j corresponds to fine sample 2*j.
+ * <p>
+ * Solvers for large systems of equations on 3D grids may compute a
+ * solution on a coarse grid, where iterations are cheap and information
+ * propagates far in few iterations, and then use that solution, linearly
+ * interpolated, as the initial guess for iterations on the fine grid.
+ *
+ * @author Xinming Wu, Colorado School of Mines
+ * @version 2016.12.21
+ */
+public class GridPyramid {
+
+  /**
+   * Minimum number of samples in any dimension of a coarse grid.
+   */
+  public static final int NMIN = 16;
+
+  /**
+   * Determines whether an array may be coarsened. An array may be
+   * coarsened if its coarse grid has at least {@link #NMIN} samples in
+   * every dimension.
+   * @param x the array.
+   * @return true, if the array may be coarsened; false, otherwise.
+   */
+  public static boolean canCoarsen(float[][][] x) {
+    int n3 = x.length;
+    int n2 = x[0].length;
+    int n1 = x[0][0].length;
+    return min(n1,min(n2,n3))>=2*NMIN;
+  }
+
+  /**
+   * Returns an array restricted to a coarse grid. Coarse values are
+   * weighted averages of fine samples 2*j-1, 2*j and 2*j+1, with weights
+   * 1/4, 1/2 and 1/4, normalized for samples beyond the ends.
+   * @param x array for the fine grid.
+   * @return array for the coarse grid.
+   */
+  public static float[][][] coarsen(float[][][] x) {
+    return coarsen(1.0f,x);
+  }
+
+  /**
+   * Returns a scaled array restricted to a coarse grid. Scaling by 2 is
+   * appropriate for derivatives with respect to sample indices, such as
+   * phase gradients, which double when sampling intervals double.
+   * @param s the scale factor.
+   * @param x array for the fine grid.
+   * @return array for the coarse grid.
+   */
+  public static float[][][] coarsen(final float s, final float[][][] x) {
+    final int n3 = x.length;
+    final int n2 = x[0].length;
+    final int n1 = x[0][0].length;
+    final int m3 = (n3+1)/2;
+    final int m2 = (n2+1)/2;
+    final int m1 = (n1+1)/2;
+    final float[][][] y = new float[m3][m2][m1];
+    Parallel.loop(m3,new Parallel.LoopInt() {
+    public void compute(int j3) {
+      for (int j2=0; j2<m2; ++j2) {
+        for (int j1=0; j1<m1; ++j1) {
+          float ys = 0.0f;
+          float ws = 0.0f;
+          for (int i3=max(2*j3-1,0); i3<=min(2*j3+1,n3-1); ++i3) {
+            float w3 = (i3==2*j3)?0.5f:0.25f;
+            for (int i2=max(2*j2-1,0); i2<=min(2*j2+1,n2-1); ++i2) {
+              float w2 = (i2==2*j2)?w3*0.5f:w3*0.25f;
+              float[] x32 = x[i3][i2];
+              for (int i1=max(2*j1-1,0); i1<=min(2*j1+1,n1-1); ++i1) {
+                float w = (i1==2*j1)?w2*0.5f:w2*0.25f;
+                ys += w*x32[i1];
+                ws += w;
+              }
+            }
+          }
+          y[j3][j2][j1] = s*ys/ws;
+        }
+      }
+    }});
+    return y;
+  }
+
+  /**
+   * Linearly interpolates and scales an array from a coarse grid.
+   * Scaling by 2 converts values in coarse samples, such as shifts, to
+   * values in fine samples.
+   * @param s the scale factor.
+   * @param x input array for the coarse grid.
+   * @param y output array for the fine grid.
+   */
+  public static void refine(
+    final float s, final float[][][] x, final float[][][] y)
+  {
+    final int m3 = x.length;
+    final int m2 = x[0].length;
+    final int m1 = x[0][0].length;
+    final int n3 = y.length;
+    final int n2 = y[0].length;
+    final int n1 = y[0][0].length;
+    Check.argument(m3==(n3+1)/2,"x.length==(y.length+1)/2");
+    Check.argument(m2==(n2+1)/2,"x[0].length==(y[0].length+1)/2");
+    Check.argument(m1==(n1+1)/2,"x[0][0].length==(y[0][0].length+1)/2");
+    final float sc = 0.125f*s;
+    Parallel.loop(n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      int j3 = i3/2;
+      int l3 = min(j3+i3%2,m3-1);
+      for (int i2=0; i2<n2; ++i2) {
+        int j2 = i2/2;
+        int l2 = min(j2+i2%2,m2-1);
+        float[] x00 = x[j3][j2];
+        float[] x01 = x[j3][l2];
+        float[] x10 = x[l3][j2];
+        float[] x11 = x[l3][l2];
+        float[] y32 = y[i3][i2];
+        for (int i1=0; i1<n1; ++i1) {
+          int j1 = i1/2;
+          int l1 = min(j1+i1%2,m1-1);
+          y32[i1] = sc*(x00[j1]+x00[l1]+x01[j1]+x01[l1]+
+                        x10[j1]+x10[l1]+x11[j1]+x11[l1]);
+        }
+      }
+    }});
+  }
+
+  /**
+   * Returns the L2 norm of an array, accumulated in double precision.
+   * @param x the array.
+   * @return the norm.
+   */
+  public static float norm(final float[][][] x) {
+    final int n3 = x.length;
+    final int n2 = x[0].length;
+    final int n1 = x[0][0].length;
+    final double[] s3 = new double[n3];
+    Parallel.loop(n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      double si = 0.0;
+      for (int i2=0; i2<n2; ++i2) {
+        float[] x32 = x[i3][i2];
+        for (int i1=0; i1<n1; ++i1)
+          si += x32[i1]*x32[i1];
+      }
+      s3[i3] = si;
+    }});
+    return (float)sqrt(sum(s3));
+  }
+}
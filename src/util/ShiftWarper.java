@@ -0,0 +1,484 @@
+/****************************************************************************
+Copyright (c) 2016, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package util;
+
+import edu.mines.jtk.dsp.KaiserWindow;
+import edu.mines.jtk.util.*;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * Warps images by applying shifts with short interpolation kernels.
+ * For shifts s1, s2 and s3, a warped image g has samples
+ * g[i3][i2][i1] = f(i1+s1[i3][i2][i1],i2+s2[i3][i2][i1],i3+s3[i3][i2][i1]),
+ * where f is interpolated from a sampled image with unit sampling.
+ * <p>
+ * Interpolation kernels are tabulated once for a fine sampling of
+ * fractional positions, and are separable, so that one weighted sum
+ * along the 1st dimension is computed for each row of an interpolation
+ * stencil. For each output row, stencil indices and table rows are
+ * computed once, before any samples are interpolated. Only stencils near
+ * the bounds of an image require extrapolation. Outputs are computed in
+ * tiles of traces, so that rows of the input image used for neighboring
+ * traces tend to be in cache. Shifts in only the 1st dimension require
+ * only one row of samples per output row, and are applied without any
+ * gathers in the 2nd and 3rd dimensions.
+ * <p>
+ * The same shifts may be applied to multiple images, such as a seismic
+ * image and its attributes, in one pass. Then stencils computed for each
+ * output row are used for all images.
+ * <p>
+ * Linear, cubic and 8-point sinc interpolation are supported. Cubic
+ * interpolation uses the Keys kernel. Sinc interpolation uses a sinc
+ * function with a Kaiser window designed like that of the default
+ * {@link edu.mines.jtk.dsp.SincInterpolator}.
+ *
+ * @author Xinming Wu, Colorado School of Mines
+ * @version 2016.12.14
+ */
+public class ShiftWarper {
+
+  /**
+   * Interpolation methods.
+   */
+  public enum Method {
+    /**
+     * Linear interpolation, with 2 samples per dimension.
+     */
+    LINEAR,
+    /**
+     * Cubic interpolation, with 4 samples per dimension.
+     */
+    CUBIC,
+    /**
+     * Windowed sinc interpolation, with 8 samples per dimension.
+     */
+    SINC8
+  }
+
+  /**
+   * Methods for extrapolating values beyond the bounds of images.
+   */
+  public enum Extrapolation {
+    /**
+     * Values beyond bounds are zero.
+     */
+    ZERO,
+    /**
+     * Values beyond bounds equal the nearest values within bounds.
+     */
+    CONSTANT
+  }
+
+  /**
+   * Constructs a warper with 8-point sinc interpolation.
+   */
+  public ShiftWarper() {
+    this(Method.SINC8);
+  }
+
+  /**
+   * Constructs a warper with the specified interpolation method.
+   * @param method the interpolation method.
+   */
+  public ShiftWarper(Method method) {
+    _lk = (method==Method.LINEAR)?2:(method==Method.CUBIC)?4:8;
+    _w = makeTable(method,_lk);
+  }
+
+  /**
+   * Sets the method for extrapolating values beyond image bounds.
+   * @param e the extrapolation method; default is zero.
+   */
+  public void setExtrapolation(Extrapolation e) {
+    _constant = (e==Extrapolation.CONSTANT);
+  }
+
+  /**
+   * Sets the numbers of traces per tile for 3D warping.
+   * @param m2 number of traces per tile in 2nd dimension; default is 16.
+   * @param m3 number of traces per tile in 3rd dimension; default is 8.
+   */
+  public void setTileSize(int m2, int m3) {
+    Check.argument(m2>0,"m2>0");
+    Check.argument(m3>0,"m3>0");
+    _m2 = m2;
+    _m3 = m3;
+  }
+
+  /**
+   * Applies shifts in the 1st dimension to a sequence.
+   * @param s1 input array of shifts.
+   * @param f input array for the sequence to be warped.
+   * @param g output array for the warped sequence.
+   */
+  public void apply(float[] s1, float[] f, float[] g) {
+    int n1 = g.length;
+    Row r = new Row(n1);
+    for (int i1=0; i1<n1; ++i1)
+      stencil(i1+s1[i1],i1,r.j1,r.t1);
+    interpolate1(r,f,g);
+  }
+
+  /**
+   * Applies shifts in the 1st dimension to an image.
+   * @param s1 input array of shifts.
+   * @param f input array for the image to be warped.
+   * @param g output array for the warped image.
+   */
+  public void apply(
+    final float[][] s1, final float[][] f, final float[][] g)
+  {
+    final int n1 = g[0].length;
+    final int n2 = g.length;
+    final Parallel.Unsafe<Row> ru = new Parallel.Unsafe<Row>();
+    Parallel.loop(n2,new Parallel.LoopInt() {
+    public void compute(int i2) {
+      Row r = row(ru,n1);
+      for (int i1=0; i1<n1; ++i1)
+        stencil(i1+s1[i2][i1],i1,r.j1,r.t1);
+      interpolate1(r,f[i2],g[i2]);
+    }});
+  }
+
+  /**
+   * Applies shifts in only the 1st dimension to an image.
+   * @param s1 input array of shifts.
+   * @param f input array for the image to be warped.
+   * @param g output array for the warped image.
+   */
+  public void apply(float[][][] s1, float[][][] f, float[][][] g) {
+    apply(s1,new float[][][][]{f},new float[][][][]{g});
+  }
+
+  /**
+   * Applies the same shifts in only the 1st dimension to multiple images.
+   * Stencils are computed only once for each output row and then used
+   * for all images.
+   * @param s1 input array of shifts.
+   * @param f input array {f1,f2,...} of images to be warped.
+   * @param g output array {g1,g2,...} of warped images.
+   */
+  public void apply(
+    final float[][][] s1, final float[][][][] f, final float[][][][] g)
+  {
+    checkImages(f,g);
+    final int nv = g.length;
+    final int n1 = g[0][0][0].length;
+    final int n2 = g[0][0].length;
+    final int n3 = g[0].length;
+    final Parallel.Unsafe<Row> ru = new Parallel.Unsafe<Row>();
+    Parallel.loop(n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      Row r = row(ru,n1);
+      for (int i2=0; i2<n2; ++i2) {
+        float[] s1i = s1[i3][i2];
+        for (int i1=0; i1<n1; ++i1)
+          stencil(i1+s1i[i1],i1,r.j1,r.t1);
+        for (int iv=0; iv<nv; ++iv)
+          interpolate1(r,f[iv][i3][i2],g[iv][i3][i2]);
+      }
+    }});
+  }
+
+  /**
+   * Applies shifts in all three dimensions to an image.
+   * @param s1 input array of shifts in 1st dimension.
+   * @param s2 input array of shifts in 2nd dimension.
+   * @param s3 input array of shifts in 3rd dimension.
+   * @param f input array for the image to be warped.
+   * @param g output array for the warped image.
+   */
+  public void apply(
+    float[][][] s1, float[][][] s2, float[][][] s3,
+    float[][][] f, float[][][] g)
+  {
+    apply(s1,s2,s3,new float[][][][]{f},new float[][][][]{g});
+  }
+
+  /**
+   * Applies the same shifts in all three dimensions to multiple images.
+   * Stencils are computed only once for each output row and then used
+   * for all images.
+   * @param s1 input array of shifts in 1st dimension.
+   * @param s2 input array of shifts in 2nd dimension.
+   * @param s3 input array of shifts in 3rd dimension.
+   * @param f input array {f1,f2,...} of images to be warped.
+   * @param g output array {g1,g2,...} of warped images.
+   */
+  public void apply(
+    final float[][][] s1, final float[][][] s2, final float[][][] s3,
+    final float[][][][] f, final float[][][][] g)
+  {
+    checkImages(f,g);
+    final int nv = g.length;
+    final int n1 = g[0][0][0].length;
+    final int n2 = g[0][0].length;
+    final int n3 = g[0].length;
+    final int m2 = min(_m2,n2);
+    final int m3 = min(_m3,n3);
+    final int nt2 = (n2+m2-1)/m2;
+    final int nt3 = (n3+m3-1)/m3;
+    final Parallel.Unsafe<Row> ru = new Parallel.Unsafe<Row>();
+    Parallel.loop(nt2*nt3,new Parallel.LoopInt() {
+    public void compute(int it) {
+      Row r = row(ru,n1);
+      int j2 = (it%nt2)*m2;
+      int j3 = (it/nt2)*m3;
+      int l2 = min(j2+m2,n2);
+      int l3 = min(j3+m3,n3);
+      for (int i3=j3; i3<l3; ++i3) {
+        for (int i2=j2; i2<l2; ++i2) {
+          float[] s1i = s1[i3][i2];
+          float[] s2i = s2[i3][i2];
+          float[] s3i = s3[i3][i2];
+          for (int i1=0; i1<n1; ++i1) {
+            stencil(i1+s1i[i1],i1,r.j1,r.t1);
+            stencil(i2+s2i[i1],i1,r.j2,r.t2);
+            stencil(i3+s3i[i1],i1,r.j3,r.t3);
+          }
+          for (int iv=0; iv<nv; ++iv)
+            interpolate3(r,f[iv],g[iv][i3][i2]);
+        }
+      }
+    }});
+  }
+
+  /**
+   * Applies a mapping in the 1st dimension to an image. For each output
+   * sample, the mapping is a coordinate x1 in the 1st dimension of the
+   * input image, with uniform sampling specified by d1 and f1.
+   * @param d1 sampling interval in the 1st dimension.
+   * @param f1 first sample value in the 1st dimension.
+   * @param x1 input array of mapped coordinates.
+   * @param f input array for the image to be warped.
+   * @param g output array for the warped image.
+   */
+  public void applyMapping(
+    double d1, double f1, float[][][] x1, float[][][] f, float[][][] g)
+  {
+    applyMapping(d1,f1,x1,new float[][][][]{f},new float[][][][]{g});
+  }
+
+  /**
+   * Applies the same mapping in the 1st dimension to multiple images.
+   * Stencils are computed only once for each output row and then used
+   * for all images.
+   * @param d1 sampling interval in the 1st dimension.
+   * @param f1 first sample value in the 1st dimension.
+   * @param x1 input array of mapped coordinates.
+   * @param f input array {f1,f2,...} of images to be warped.
+   * @param g output array {g1,g2,...} of warped images.
+   */
+  public void applyMapping(
+    double d1, double f1,
+    final float[][][] x1, final float[][][][] f, final float[][][][] g)
+  {
+    checkImages(f,g);
+    final int nv = g.length;
+    final int n1 = g[0][0][0].length;
+    final int n2 = g[0][0].length;
+    final int n3 = g[0].length;
+    final float od1 = (float)(1.0/d1);
+    final float ff1 = (float)f1;
+    final Parallel.Unsafe<Row> ru = new Parallel.Unsafe<Row>();
+    Parallel.loop(n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      Row r = row(ru,n1);
+      for (int i2=0; i2<n2; ++i2) {
+        float[] x1i = x1[i3][i2];
+        for (int i1=0; i1<n1; ++i1)
+          stencil((x1i[i1]-ff1)*od1,i1,r.j1,r.t1);
+        for (int iv=0; iv<nv; ++iv)
+          interpolate1(r,f[iv][i3][i2],g[iv][i3][i2]);
+      }
+    }});
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int NTAB = 1024; // number of tabulated fractions
+
+  private int _lk; // kernel length
+  private float[][] _w; // table of weights[NTAB][lk]
+  private boolean _constant; // true, if constant extrapolation
+  private int _m2 = 16; // traces per tile in 2nd dimension
+  private int _m3 = 8; // traces per tile in 3rd dimension
+
+  // Stencil indices and table rows for one output row, reused by one thread.
+  private static class Row {
+    int[] j1,j2,j3; // indices of first samples in stencils
+    int[] t1,t2,t3; // rows in table of weights
+    Row(int n1) {
+      j1 = new int[n1]; t1 = new int[n1];
+      j2 = new int[n1]; t2 = new int[n1];
+      j3 = new int[n1]; t3 = new int[n1];
+    }
+  }
+
+  private static void checkImages(float[][][][] f, float[][][][] g) {
+    Check.argument(f.length==g.length,"f.length==g.length");
+  }
+
+  private static Row row(Parallel.Unsafe<Row> ru, int n1) {
+    Row r = ru.get();
+    if (r==null || r.j1.length!=n1)
+      ru.set(r=new Row(n1));
+    return r;
+  }
+
+  // Table of weights for NTAB fractions in [0,1), for the kernel length lk.
+  // The first sample in a stencil for position x is floor(x)-(lk/2-1).
+  private static float[][] makeTable(Method method, int lk) {
+    int jo = lk/2-1;
+    KaiserWindow kw = (method==Method.SINC8) ?
+      KaiserWindow.fromWidthAndLength(0.4,lk) :
+      null;
+    float[][] w = new float[NTAB][lk];
+    for (int it=0; it<NTAB; ++it) {
+      double frac = (double)it/NTAB;
+      double sum = 0.0;
+      for (int k=0; k<lk; ++k) {
+        double x = k-jo-frac;
+        double ax = abs(x);
+        double wk;
+        if (method==Method.LINEAR) {
+          wk = (ax<1.0)?1.0-ax:0.0;
+        } else if (method==Method.CUBIC) {
+          wk = (ax<1.0) ? (1.5*ax-2.5)*ax*ax+1.0 :
+               (ax<2.0) ? ((-0.5*ax+2.5)*ax-4.0)*ax+2.0 :
+               0.0;
+        } else {
+          double sinc = (ax==0.0)?1.0:sin(PI*x)/(PI*x);
+          wk = sinc*kw.evaluate(x);
+        }
+        w[it][k] = (float)wk;
+        sum += wk;
+      }
+      for (int k=0; k<lk; ++k)
+        w[it][k] /= (float)sum;
+    }
+    return w;
+  }
+
+  // Sets the first index and table row of the stencil for position x.
+  private void stencil(float x, int i, int[] j, int[] t) {
+    int ix = (int)x;
+    if (ix>x) --ix;
+    int it = (int)((x-ix)*NTAB+0.5f);
+    if (it==NTAB) {
+      ++ix;
+      it = 0;
+    }
+    j[i] = ix-(_lk/2-1);
+    t[i] = it;
+  }
+
+  private float value(float[] f, int j) {
+    int n = f.length;
+    if (0<=j && j<n)
+      return f[j];
+    else if (_constant)
+      return (j<0)?f[0]:f[n-1];
+    else
+      return 0.0f;
+  }
+
+  private int index(int j, int n) {
+    if (0<=j && j<n)
+      return j;
+    else if (_constant)
+      return (j<0)?0:n-1;
+    else
+      return -1;
+  }
+
+  private void interpolate1(Row r, float[] f, float[] g) {
+    int n1 = g.length;
+    int nf = f.length;
+    int lk = _lk;
+    int[] j1 = r.j1;
+    int[] t1 = r.t1;
+    if (lk==2) {
+      for (int i1=0; i1<n1; ++i1) {
+        int j = j1[i1];
+        float w = _w[t1[i1]][1];
+        if (0<=j && j<nf-1) {
+          float f0 = f[j];
+          g[i1] = f0+w*(f[j+1]-f0);
+        } else {
+          float f0 = value(f,j);
+          g[i1] = f0+w*(value(f,j+1)-f0);
+        }
+      }
+    } else {
+      for (int i1=0; i1<n1; ++i1) {
+        int j = j1[i1];
+        float[] w = _w[t1[i1]];
+        float gi = 0.0f;
+        if (0<=j && j<=nf-lk) {
+          for (int k=0; k<lk; ++k)
+            gi += w[k]*f[j+k];
+        } else {
+          for (int k=0; k<lk; ++k)
+            gi += w[k]*value(f,j+k);
+        }
+        g[i1] = gi;
+      }
+    }
+  }
+
+  private void interpolate3(Row r, float[][][] f, float[] g) {
+    int n1 = g.length;
+    int nf1 = f[0][0].length;
+    int nf2 = f[0].length;
+    int nf3 = f.length;
+    int lk = _lk;
+    for (int i1=0; i1<n1; ++i1) {
+      int j1 = r.j1[i1];
+      int j2 = r.j2[i1];
+      int j3 = r.j3[i1];
+      float[] w1 = _w[r.t1[i1]];
+      float[] w2 = _w[r.t2[i1]];
+      float[] w3 = _w[r.t3[i1]];
+      float gi = 0.0f;
+      if (0<=j1 && j1<=nf1-lk &&
+          0<=j2 && j2<=nf2-lk &&
+          0<=j3 && j3<=nf3-lk) {
+        for (int k3=0; k3<lk; ++k3) {
+          float[][] f3 = f[j3+k3];
+          float g3 = 0.0f;
+          for (int k2=0; k2<lk; ++k2) {
+            float[] f2 = f3[j2+k2];
+            float g2 = 0.0f;
+            for (int k1=0; k1<lk; ++k1)
+              g2 += w1[k1]*f2[j1+k1];
+            g3 += w2[k2]*g2;
+          }
+          gi += w3[k3]*g3;
+        }
+      } else {
+        for (int k3=0; k3<lk; ++k3) {
+          int m3 = index(j3+k3,nf3);
+          if (m3<0) continue;
+          float g3 = 0.0f;
+          for (int k2=0; k2<lk; ++k2) {
+            int m2 = index(j2+k2,nf2);
+            if (m2<0) continue;
+            float[] f2 = f[m3][m2];
+            float g2 = 0.0f;
+            for (int k1=0; k1<lk; ++k1)
+              g2 += w1[k1]*value(f2,j1+k1);
+            g3 += w2[k2]*g2;
+          }
+          gi += w3[k3]*g3;
+        }
+      }
+      g[i1] = gi;
+    }
+  }
+}